@@ -15,11 +15,13 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import java.io.IOException;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 @Api(AnnotationsResource.PATH)
 @Path(AnnotationsResource.PATH)
@@ -42,8 +44,8 @@ public class AnnotationsResource {
   @ApiResponses(value = {
     @ApiResponse(code = 404, message = "Annotation not found")
   })
-  public Response get(@PathParam("id") String id) {
-    return ElasticBackend.asResponse(backend.getAnnotation(id));
+  public void get(@PathParam("id") String id, @Suspended AsyncResponse response) {
+    ElasticBackend.resume(response, backend.getAnnotationAsync(id), ElasticBackend::asResponse);
   }
 
   @PUT
@@ -58,22 +60,23 @@ public class AnnotationsResource {
   @Path("{id}/annotations")
   @ApiOperation(value = "Get all annotations on a given annotation",
     response = Annotation.class, responseContainer = "List")
-  public List<Annotation> getAnnotations(@PathParam("id") String id,
-                                         @ApiParam("recursively get annotation on the annotations")
-                                         @QueryParam("recursive") @DefaultValue("true") boolean recursive) {
+  public void getAnnotations(@PathParam("id") String id,
+                             @ApiParam("recursively get annotation on the annotations")
+                             @QueryParam("recursive") @DefaultValue("true") boolean recursive,
+                             @Suspended AsyncResponse response) {
     // First ensure that id is really an annotation (not a document)
-    if (backend.getAnnotation(id) == null) {
-      return null;
-    }
-    return backend.getAnnotations(id, null, recursive);
+    ElasticBackend.resume(response, backend.getAnnotationAsync(id).thenCompose(
+      ann -> ann == null ? CompletableFuture.completedFuture(null) : backend.getAnnotationsAsync(id, null, recursive)),
+      annotations -> annotations == null ? Response.noContent().build() : Response.ok(annotations).build());
   }
 
   @POST
   @Path("{id}/annotations")
   @Consumes(MediaType.APPLICATION_JSON)
   @ApiOperation(value = "Add an annotation on an annotation", response = ElasticBackend.PutResult.class)
-  public Response putAnnotation(@PathParam("id") String id, Annotation ann) throws IOException {
-    return responseBuilder.forResult(backend.putAnnotation(id, ann)).build();
+  public void putAnnotation(@PathParam("id") String id, Annotation ann, @Suspended AsyncResponse response) {
+    ElasticBackend.resume(response, backend.putAnnotationAsync(id, ann),
+      result -> responseBuilder.forResult(result).build());
   }
 
 }
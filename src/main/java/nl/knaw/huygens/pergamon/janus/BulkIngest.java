@@ -0,0 +1,271 @@
+package nl.knaw.huygens.pergamon.janus;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import io.dropwizard.util.Size;
+import nl.knaw.huygens.pergamon.janus.xml.TaggedCodepoints;
+import nu.xom.ParsingException;
+import org.apache.commons.lang3.tuple.Triple;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import javax.xml.stream.XMLStreamException;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeoutException;
+
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
+import static javax.ws.rs.core.Response.Status.CONFLICT;
+import static javax.ws.rs.core.Response.Status.CREATED;
+import static javax.ws.rs.core.Response.Status.REQUEST_TIMEOUT;
+import static org.elasticsearch.client.Requests.bulkRequest;
+
+/**
+ * Loads many XML documents at once.
+ * <p>
+ * Documents are converted and their originals stored on a pool of worker threads.
+ * The documents and their tags are then indexed in Elasticsearch bulk requests that
+ * span many documents, bounded in their number of actions and in bytes.
+ * <p>
+ * Bulk ingest never overwrites: a document whose id is already in use is reported as a conflict.
+ * A document that fails to be indexed is removed again, original and all, so that it can be retried.
+ * <p>
+ * The originals of a session are fsynced together when it finishes, rather than one by one.
+ */
+public class BulkIngest {
+  private static final Logger LOG = LoggerFactory.getLogger(BulkIngest.class);
+
+  static class Config {
+    // Number of worker threads that convert documents and store their originals.
+    @JsonProperty
+    @Min(1)
+    int threads = 4;
+
+    // Bounds on a single Elasticsearch bulk request. A document and its tags always go in the same request.
+    @JsonProperty
+    @Min(1)
+    int maxBulkActions = 1000;
+
+    @JsonProperty
+    @NotNull
+    Size maxBulkSize = Size.megabytes(5);
+  }
+
+  private final ElasticBackend backend;
+  private final ExecutorService executor;
+  private final Config config;
+
+  BulkIngest(ElasticBackend backend, ExecutorService executor, Config config) {
+    this.backend = backend;
+    this.executor = executor;
+    this.config = config;
+  }
+
+  /**
+   * Starts a bulk load.
+   */
+  public Session start() {
+    return new Session();
+  }
+
+  /**
+   * A single bulk load. Documents are added one at a time, then finish reports the outcome
+   * for each of them.
+   */
+  public class Session {
+    // Bounds the number of documents that have been added, but not yet handed to a bulk request,
+    // so that a slow Elasticsearch doesn't make us buffer an entire upload.
+    private final int maxInFlight = 2 * config.threads;
+    private final Semaphore inFlight = new Semaphore(maxInFlight);
+
+    // Outcome for each document, in the order in which they were added.
+    private final List<ElasticBackend.PutResult> results = Collections.synchronizedList(new ArrayList<>());
+
+    private Batch batch = new Batch();
+
+    private final OriginalStore.WriteBatch originals = backend.originalsBatch();
+
+    private Session() {
+    }
+
+    /**
+     * Schedules the XML document content to be stored under id. Blocks while too many documents are in flight.
+     */
+    public void add(String id, byte[] content) {
+      inFlight.acquireUninterruptibly();
+      int entry = results.size();
+      results.add(null);
+      try {
+        executor.execute(() -> process(entry, id, content));
+      } catch (Throwable e) {
+        inFlight.release();
+        throw e;
+      }
+    }
+
+    /**
+     * Records a result for a document that was not added, e.g., because it was too large.
+     */
+    public void reject(String id, int status, String message) {
+      results.add(new ElasticBackend.PutResult(id, status, message));
+    }
+
+    /**
+     * Waits for all documents to be indexed and returns their results, in the order in which they were added.
+     */
+    public List<ElasticBackend.PutResult> finish() {
+      inFlight.acquireUninterruptibly(maxInFlight);
+      try {
+        Batch last;
+        synchronized (this) {
+          last = batch;
+          batch = new Batch();
+        }
+        flush(last);
+        try {
+          originals.sync();
+        } catch (Throwable e) {
+          LOG.warn("syncing originals failed", e);
+          synchronized (results) {
+            for (int entry = 0; entry < results.size(); entry++) {
+              fail(entry, 500, e.toString());
+            }
+          }
+        }
+        synchronized (results) {
+          return new ArrayList<>(results);
+        }
+      } finally {
+        inFlight.release(maxInFlight);
+      }
+    }
+
+    // Converts document and stores the original, then hands the result to a bulk request.
+    // Runs on a worker thread.
+    private void process(int entry, String id, byte[] content) {
+      boolean stored = false;
+      try {
+        Triple<String, TaggedCodepoints, Map<String, String>> mapped =
+          backend.convertXml(id, new ByteArrayInputStream(content));
+        try (OriginalStore.WriteOp put = backend.putOriginal(id, content, originals)) {
+          put.commit();
+        }
+        stored = true;
+        index(entry, id, content, mapped);
+      } catch (FileAlreadyExistsException e) {
+        results.set(entry, new ElasticBackend.PutResult(id, CONFLICT));
+      } catch (TimeoutException e) {
+        results.set(entry, new ElasticBackend.PutResult(id, REQUEST_TIMEOUT));
+      } catch (ParsingException | XMLStreamException | IllegalArgumentException e) {
+        results.set(entry, new ElasticBackend.PutResult(id, BAD_REQUEST, e.toString()));
+      } catch (Throwable e) {
+        LOG.warn("bulk ingest of {} failed", id, e);
+        results.set(entry, new ElasticBackend.PutResult(id, 500, e.toString()));
+        if (stored) {
+          undoPut(id, content);
+        }
+      } finally {
+        inFlight.release();
+      }
+    }
+
+    private void index(int entry, String id, byte[] content,
+                       Triple<String, TaggedCodepoints, Map<String, String>> mapped) throws Exception {
+      // Serialize outside the lock; that's where the work is.
+      TaggedCodepoints body = mapped.getMiddle();
+      List<IndexRequest> actions = new ArrayList<>(body.size() + 1);
+      actions.add(backend.documentRequest(id, mapped, false));
+      for (int i = 0; i < body.size(); i++) {
+        actions.add(backend.tagRequest(id, body.id(i), body, i, false));
+      }
+      results.set(entry, new ElasticBackend.PutResult(id, CREATED));
+
+      Batch full = null;
+      synchronized (this) {
+        actions.forEach(action -> batch.add(entry, action));
+        batch.originals.put(entry, content);
+        if (batch.full()) {
+          full = batch;
+          batch = new Batch();
+        }
+      }
+      if (full != null) {
+        flush(full);
+      }
+    }
+
+    // Sends batch to Elasticsearch and records failures in the results of the documents concerned.
+    // The originals of those documents are removed again, along with anything that did get indexed.
+    private void flush(Batch batch) {
+      if (batch.request.numberOfActions() == 0) {
+        return;
+      }
+      try {
+        for (BulkItemResponse item : backend.bulk(batch.request)) {
+          if (item.isFailed()) {
+            fail(batch.entries.get(item.getItemId()), item.status().getStatus(), item.getFailureMessage());
+          }
+        }
+      } catch (Throwable e) {
+        LOG.warn("bulk request failed", e);
+        batch.entries.forEach(entry -> fail(entry, 500, e.toString()));
+      } finally {
+        batch.originals.forEach((entry, content) -> {
+          ElasticBackend.PutResult r = results.get(entry);
+          if (r.status != CREATED.getStatusCode()) {
+            undoPut(r.id, content);
+          }
+          backend.invalidateAnnotations(r.id);
+        });
+      }
+    }
+
+    private void undoPut(String id, byte[] content) {
+      try {
+        backend.undoPut(id, content);
+      } catch (Throwable e) {
+        LOG.warn("could not remove {} after its bulk ingest failed", id, e);
+      }
+    }
+
+    // Records the first failure for a document.
+    private void fail(int entry, int status, String message) {
+      synchronized (results) {
+        ElasticBackend.PutResult r = results.get(entry);
+        if (r.status == CREATED.getStatusCode()) {
+          results.set(entry, new ElasticBackend.PutResult(r.id, status, message));
+        }
+      }
+    }
+  }
+
+  // Bulk request under construction, with the entry (document) that each action belongs to.
+  private class Batch {
+    final BulkRequest request = bulkRequest();
+    final List<Integer> entries = new ArrayList<>();
+    // Content of the original of each entry, to undo its put if indexing fails.
+    final Map<Integer, byte[]> originals = new LinkedHashMap<>();
+
+    void add(int entry, IndexRequest action) {
+      request.add(action);
+      entries.add(entry);
+    }
+
+    boolean full() {
+      return request.numberOfActions() >= config.maxBulkActions ||
+        request.estimatedSizeInBytes() >= config.maxBulkSize.toBytes();
+    }
+  }
+}
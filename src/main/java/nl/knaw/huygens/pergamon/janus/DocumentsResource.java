@@ -1,5 +1,11 @@
 package nl.knaw.huygens.pergamon.janus;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import io.dropwizard.jackson.Jackson;
+import io.dropwizard.util.Size;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
@@ -10,12 +16,16 @@ import nu.xom.Element;
 import nu.xom.Text;
 import org.glassfish.jersey.media.multipart.FormDataContentDisposition;
 import org.glassfish.jersey.media.multipart.FormDataParam;
+import org.glassfish.jersey.server.CloseableService;
 import org.hibernate.validator.constraints.NotEmpty;
 
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
@@ -24,17 +34,41 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 import static javax.ws.rs.core.Response.Status.NOT_FOUND;
+import static javax.ws.rs.core.Response.Status.PARTIAL_CONTENT;
+import static javax.ws.rs.core.Response.Status.REQUEST_ENTITY_TOO_LARGE;
 import static javax.ws.rs.core.Response.Status.REQUEST_TIMEOUT;
+import static javax.ws.rs.core.Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE;
 
 @Api(DocumentsResource.PATH)
 @Path(DocumentsResource.PATH)
@@ -42,6 +76,14 @@ import static javax.ws.rs.core.Response.Status.REQUEST_TIMEOUT;
 public class DocumentsResource {
   static final String PATH = "documents";
 
+  // Newline-delimited JSON, http://ndjson.org.
+  static final String NDJSON = "application/x-ndjson";
+
+  private static final ObjectMapper MAPPER = Jackson.newObjectMapper();
+
+  // Single byte range, as in a Range header.
+  private static final Pattern BYTE_RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
   private static final String TEXT_MODELER_KEYWORDS_EXTRACTION_PATH = "keywords";
 
   private static final String DOCUMENT_ID = "document ID";
@@ -51,10 +93,14 @@ public class DocumentsResource {
   private final RestResponseBuilder responseBuilder = new RestResponseBuilder(PATH);
 
   private final ElasticBackend backend;
+  private final BulkIngest bulkIngest;
+  private final Config config;
   private final WebTarget modeler;
 
-  DocumentsResource(ElasticBackend backend, WebTarget modeler) {
+  DocumentsResource(ElasticBackend backend, BulkIngest bulkIngest, Config config, WebTarget modeler) {
     this.backend = backend;
+    this.bulkIngest = bulkIngest;
+    this.config = config;
     this.modeler = modeler;
   }
 
@@ -62,10 +108,11 @@ public class DocumentsResource {
   @ApiOperation(value = "List of document ids in the index",
     notes = "Paginated; counting starts at 0. Parameter q expects Lucene query syntax.",
     response = ElasticBackend.ListPage.class)
-  public Response index(@QueryParam("q") String query,
-                        @QueryParam("from") @DefaultValue("0") int from,
-                        @QueryParam("total") @DefaultValue("100") int count) {
-    return ElasticBackend.asResponse(backend.listDocs(query, from, count));
+  public void index(@QueryParam("q") String query,
+                    @QueryParam("from") @DefaultValue("0") int from,
+                    @QueryParam("total") @DefaultValue("100") int count,
+                    @Suspended AsyncResponse response) {
+    ElasticBackend.resume(response, backend.listDocsAsync(query, from, count), ElasticBackend::asResponse);
   }
 
   @GET
@@ -75,9 +122,10 @@ public class DocumentsResource {
   @ApiResponses(value = {
     @ApiResponse(code = 404, message = "Document not found")
   })
-  public Response get(@ApiParam(DOCUMENT_ID) @PathParam("id") String id,
-                      @QueryParam("recursive") @DefaultValue("true") boolean recursive) throws IOException {
-    return ElasticBackend.asResponse(backend.getWithAnnotations(id, recursive));
+  public void get(@ApiParam(DOCUMENT_ID) @PathParam("id") String id,
+                  @QueryParam("recursive") @DefaultValue("true") boolean recursive,
+                  @Suspended AsyncResponse response) {
+    ElasticBackend.resume(response, backend.getWithAnnotationsAsync(id, recursive), ElasticBackend::asResponse);
   }
 
   @DELETE
@@ -111,16 +159,104 @@ public class DocumentsResource {
   @GET
   @Path("{id}/annotations")
   @ApiOperation(value = "Gets the annotations of a specific document by id",
+    notes = "If limit is given and there may be more annotations, a Link header with rel=\"next\" " +
+      "points to the next page. Without limit, the annotations are streamed as they are fetched.",
     response = Annotation.class,
     responseContainer = "List"
   )
-  public Response getAnnotations(@PathParam("id") String id,
-                                 @ApiParam("Recursively get annotations on annotations also")
-                                 @QueryParam("recursive") @DefaultValue("true") boolean recursive,
-                                 @ApiParam(value = "Lucene style query string")
-                                 @QueryParam("q") String query) {
+  public void getAnnotations(@PathParam("id") String id,
+                             @ApiParam("Recursively get annotations on annotations also")
+                             @QueryParam("recursive") @DefaultValue("true") boolean recursive,
+                             @ApiParam(value = "Lucene style query string")
+                             @QueryParam("q") String query,
+                             @ApiParam("Maximum number of annotations to return")
+                             @QueryParam("limit") @Min(1) Integer limit,
+                             @ApiParam("Return the annotations after the one with this id (from a previous page)")
+                             @QueryParam("after") String after,
+                             @Context UriInfo uriInfo,
+                             @Suspended AsyncResponse async) {
     // TODO distinguish between id not found (404) and no annotations for id (empty list)
-    return ElasticBackend.asResponse(backend.getAnnotations(id, query, recursive));
+    if (limit == null) {
+      // The stream fetches as it writes, so it is written by this thread, not by the one that resumes.
+      if (after != null && backend.getAnnotation(after) == null) {
+        async.resume(Response.status(BAD_REQUEST).entity("no annotation " + after).build());
+      } else {
+        async.resume(Response.ok(annotationStream(id, recursive, query, Integer.MAX_VALUE, after, false)).build());
+      }
+      return;
+    }
+
+    CompletableFuture<Annotation> afterAnnotation =
+      after == null ? CompletableFuture.completedFuture(null) : backend.getAnnotationAsync(after);
+    ElasticBackend.resume(async, afterAnnotation.thenCompose(ann -> {
+      if (after != null && ann == null) {
+        return CompletableFuture.completedFuture(Response.status(BAD_REQUEST).entity("no annotation " + after)
+                                                         .build());
+      }
+      return backend.getDocumentAnnotationsAsync(id, query, recursive, limit, after).thenApply(annotations -> {
+        Response.ResponseBuilder response = Response.ok(annotations);
+        if (annotations.size() == limit) {
+          String last = annotations.get(annotations.size() - 1).id;
+          response.link(uriInfo.getRequestUriBuilder().replaceQueryParam("after", last).build(), "next");
+        }
+        return response.build();
+      });
+    }), response -> response);
+  }
+
+  @GET
+  @Path("{id}/annotations")
+  @Produces(NDJSON)
+  @ApiOperation(value = "Streams the annotations of a specific document by id, one JSON object per line",
+    notes = "To continue after an interrupted or limited stream, pass the id of the last annotation as after.",
+    response = Annotation.class,
+    produces = NDJSON
+  )
+  public Response streamAnnotations(@PathParam("id") String id,
+                                    @ApiParam("Recursively get annotations on annotations also")
+                                    @QueryParam("recursive") @DefaultValue("true") boolean recursive,
+                                    @ApiParam(value = "Lucene style query string")
+                                    @QueryParam("q") String query,
+                                    @ApiParam("Maximum number of annotations to return")
+                                    @QueryParam("limit") @Min(1) Integer limit,
+                                    @ApiParam("Return the annotations after the one with this id")
+                                    @QueryParam("after") String after) {
+    if (after != null && backend.getAnnotation(after) == null) {
+      return Response.status(BAD_REQUEST).entity("no annotation " + after).build();
+    }
+    return Response.ok(annotationStream(id, recursive, query, limit == null ? Integer.MAX_VALUE : limit, after,
+      true)).build();
+  }
+
+  // Writes annotations while they are being fetched, either as NDJSON or as a JSON array,
+  // so that they need not all be in memory at once.
+  private StreamingOutput annotationStream(String id, boolean recursive, String query, int limit, String after,
+                                           boolean ndjson) {
+    return out -> {
+      JsonGenerator json = MAPPER.getFactory().createGenerator(out);
+      json.setRootValueSeparator(null);
+      if (!ndjson) {
+        json.writeStartArray();
+      }
+      try {
+        backend.forEachDocumentAnnotation(id, query, recursive, limit, after, ann -> {
+          try {
+            json.writeObject(ann);
+            if (ndjson) {
+              json.writeRaw('\n');
+            }
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      if (!ndjson) {
+        json.writeEndArray();
+      }
+      json.close();
+    };
   }
 
   @POST
@@ -144,17 +280,24 @@ public class DocumentsResource {
   @Consumes(MediaType.APPLICATION_JSON)
   @ApiOperation(value = "Search documents using Elasticsearch",
     notes = "Returns \"raw\" Elasticsearch results")
-  public Response query(String query) throws IOException {
-    org.elasticsearch.client.Response er = backend.search(query);
-    return Response.status(er.getStatusLine().getStatusCode()).entity(er.getEntity().getContent()).build();
+  public void query(String query, @Suspended AsyncResponse response) {
+    ElasticBackend.resume(response, backend.searchAsync(query), er -> {
+      try {
+        return Response.status(er.getStatusLine().getStatusCode()).entity(er.getEntity().getContent()).build();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
   }
 
   @POST
   @Path("{id}/annotations")
   @Consumes(MediaType.APPLICATION_JSON)
   @ApiOperation(value = "Add an annotation to a specific document", response = ElasticBackend.PutResult.class)
-  public Response putAnnotation(@ApiParam(DOCUMENT_ID) @PathParam("id") String id, Annotation ann) throws IOException {
-    return responseBuilder.forResult(backend.putAnnotation(id, ann)).build();
+  public void putAnnotation(@ApiParam(DOCUMENT_ID) @PathParam("id") String id, Annotation ann,
+                            @Suspended AsyncResponse response) {
+    ElasticBackend.resume(response, backend.putAnnotationAsync(id, ann),
+      result -> responseBuilder.forResult(result).build());
   }
 
   @POST
@@ -188,15 +331,184 @@ public class DocumentsResource {
 
   @GET
   @Path("{id}/orig")
-  @ApiOperation(value = "Reproduce document as it was uploaded")
-  public Response getOriginal(@PathParam("id") @NotEmpty String id) throws IOException {
+  @Produces(MediaType.WILDCARD)
+  @ApiOperation(value = "Reproduce document as it was uploaded",
+    notes = "Supports a single byte range (Range, If-Range) and conditional requests (If-None-Match). " +
+      "Compressed originals are sent with Content-Encoding: gzip if the client accepts that.")
+  public Response getOriginal(@PathParam("id") @NotEmpty String id,
+                              @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding,
+                              @HeaderParam("Range") String range,
+                              @HeaderParam("If-Range") String ifRange,
+                              @Context Request request,
+                              @Context CloseableService closer) throws IOException {
+    OriginalStore.Original orig;
     try {
-      return Response.ok().entity(backend.getOriginal(id)).build();
+      orig = backend.openOriginal(id);
+    } catch (NoSuchFileException e) {
+      return Response.status(NOT_FOUND).build();
     } catch (TimeoutException e) {
       return Response.status(REQUEST_TIMEOUT).entity(e.getMessage()).build();
-    } catch (Throwable e) {
-      return Response.serverError().entity(e.getMessage()).build();
     }
+    // Closed when the request is done, whether or not the entity gets written (it isn't for HEAD).
+    closer.add(orig);
+
+    // Compressed originals are decompressed for clients that don't accept gzip. We don't know the
+    // decompressed size up front, so that representation has no Content-Length and no ranges.
+    boolean decompress = orig.gzipped && !acceptsGzip(acceptEncoding);
+    EntityTag etag = new EntityTag(decompress ? orig.etag() + "-identity" : orig.etag());
+    // Without a modification time of its own, the original is validated by its ETag only.
+    Date lastModified = orig.lastModified == null ? null : new Date(orig.lastModified.toMillis());
+    Response.ResponseBuilder precondition = lastModified == null ? request.evaluatePreconditions(etag)
+      : request.evaluatePreconditions(lastModified, etag);
+    if (precondition != null) {
+      return precondition.build();
+    }
+
+    MediaType type;
+    try (InputStream head = orig.content()) {
+      type = mediaType(head);
+    }
+    if (decompress) {
+      StreamingOutput body = out -> {
+        try (InputStream in = orig.content()) {
+          ByteStreams.copy(in, out);
+        }
+      };
+      return Response.ok(body, type)
+                     .tag(etag)
+                     .lastModified(lastModified)
+                     .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                     .build();
+    }
+
+    long start = 0;
+    long end = orig.size;
+    Response.ResponseBuilder response = Response.ok();
+    if (range != null && (ifRange == null || ifRange.equals(etag.toString()))) {
+      long[] r = byteRange(range, orig.size);
+      if (r != null && r.length == 0) {
+        return Response.status(REQUESTED_RANGE_NOT_SATISFIABLE).header("Content-Range", "bytes */" + orig.size)
+                       .build();
+      }
+      if (r != null) {
+        start = r[0];
+        end = r[1];
+        response = Response.status(PARTIAL_CONTENT)
+                           .header("Content-Range", String.format("bytes %d-%d/%d", start, end - 1, orig.size));
+      }
+    }
+
+    long from = start;
+    long to = end;
+    StreamingOutput body = out -> {
+      // Let the channel copy to the response, instead of going through a byte[] of the whole file.
+      WritableByteChannel target = Channels.newChannel(out);
+      for (long pos = from; pos < to; ) {
+        long n = orig.channel.transferTo(pos, to - pos, target);
+        if (n <= 0) {
+          throw new EOFException(String.format("original %s ended at %d of %d bytes", id, pos, to));
+        }
+        pos += n;
+      }
+    };
+    if (orig.gzipped) {
+      response.encoding("gzip").header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    }
+    return response.type(type)
+                   .tag(etag)
+                   .lastModified(lastModified)
+                   .header("Accept-Ranges", "bytes")
+                   .header(HttpHeaders.CONTENT_LENGTH, end - start)
+                   .entity(body)
+                   .build();
+  }
+
+  /*
+   * Parses a Range header for a resource of the given size. Returns start and end (exclusive) offsets,
+   * null if the header is to be ignored (malformed, or not a single byte range), or an empty array
+   * if the range is not satisfiable.
+   */
+  static long[] byteRange(String header, long size) {
+    Matcher m = BYTE_RANGE.matcher(header.trim());
+    if (!m.matches() || m.group(1).isEmpty() && m.group(2).isEmpty()) {
+      return null;
+    }
+    try {
+      long start;
+      long end;
+      if (m.group(1).isEmpty()) { // suffix: the last n bytes
+        long n = Long.parseLong(m.group(2));
+        start = Math.max(0, size - n);
+        end = n == 0 ? start : size;
+      } else {
+        start = Long.parseLong(m.group(1));
+        end = m.group(2).isEmpty() ? size : Math.min(size, Long.parseLong(m.group(2)) + 1);
+        if (end <= start && start < size) {
+          return null; // last-byte-pos before first-byte-pos: syntactically invalid
+        }
+      }
+      return start < end ? new long[]{start, end} : new long[0];
+    } catch (NumberFormatException e) {
+      return null; // overflow
+    }
+  }
+
+  // Whether an Accept-Encoding header permits gzip.
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim().toLowerCase(Locale.ROOT);
+      if (!name.equals("gzip") && !name.equals("x-gzip") && !name.equals("*")) {
+        continue;
+      }
+      boolean refused = false;
+      for (int i = 1; i < parts.length; i++) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            refused = Double.parseDouble(param.substring(2)) == 0;
+          } catch (NumberFormatException e) {
+            refused = true;
+          }
+        }
+      }
+      if (!refused) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   * Guesses the type of an original, which is XML, JSON or text, from its first non-blank character.
+   * XML declares its own encoding; JSON and text are stored as UTF-8.
+   */
+  static MediaType mediaType(InputStream content) throws IOException {
+    byte[] head = new byte[64];
+    int n = ByteStreams.read(content, head, 0, head.length);
+    for (int i = 0; i < n; i++) {
+      switch (head[i] & 0xFF) {
+        case ' ':
+        case '\t':
+        case '\r':
+        case '\n':
+        case 0xEF: // UTF-8 byte order mark
+        case 0xBB:
+        case 0xBF:
+          continue;
+        case '<':
+          return MediaType.APPLICATION_XML_TYPE;
+        case '{':
+        case '[':
+          return MediaType.APPLICATION_JSON_TYPE.withCharset("UTF-8");
+        default:
+          return MediaType.TEXT_PLAIN_TYPE.withCharset("UTF-8");
+      }
+    }
+    return MediaType.TEXT_PLAIN_TYPE.withCharset("UTF-8");
   }
 
   @POST
@@ -222,27 +534,159 @@ public class DocumentsResource {
       if (entry.isDirectory()) {
         continue;
       }
-      String name = entry.getName();
-      if (name.endsWith(".xml")) {
-        name = name.substring(0, name.length() - 4);
+      ElasticBackend.PutResult r = putEntry(z, entry);
+      if (r.status >= 500) {
+        status = r.status;
+        break;
+      } else if (r.status > 200 && status < 300) {
+        status = r.status;
       }
+    }
+    return Response.status(status).build();
+  }
 
-      long size = entry.getSize();
-      if (size > Integer.MAX_VALUE) {
-        throw new IllegalArgumentException(String.format("file too long: max %d bytes", Integer.MAX_VALUE));
+  // Stores a single zip entry, streaming it from z into the backend.
+  private ElasticBackend.PutResult putEntry(ZipInputStream z, ZipEntry entry) throws IOException {
+    String id = documentId(entry);
+    long maxSize = config.maxZipEntrySize.toBytes();
+    if (entry.getSize() > maxSize) {
+      return tooLarge(id);
+    }
+    EntryStream in = new EntryStream(z, maxSize);
+    try {
+      ElasticBackend.PutResult r = backend.updateXml(id, in);
+      // The parser may have reported the overflow as a syntax error.
+      return in.exceeded ? tooLarge(id) : r;
+    } catch (IOException e) {
+      if (in.exceeded) {
+        return tooLarge(id);
       }
-      byte[] content = new byte[(int) entry.getSize()];
-      while (size > 0) {
-        size -= z.read(content, content.length - (int) size, (int) size);
+      throw e;
+    }
+  }
+
+  private ElasticBackend.PutResult tooLarge(String id) {
+    return new ElasticBackend.PutResult(id, REQUEST_ENTITY_TOO_LARGE,
+      String.format("file too long: max %d bytes", config.maxZipEntrySize.toBytes()));
+  }
+
+  @POST
+  @Path("bulk")
+  @Consumes(MediaType.MULTIPART_FORM_DATA)
+  @ApiOperation(value = "Add all XML documents in a zip file",
+    notes = "Documents are converted and indexed concurrently and in bulk. Existing documents are not replaced. " +
+      "Returns the result for each document, in the order of the zip file.",
+    response = ElasticBackend.PutResult.class,
+    responseContainer = "List")
+  public Response putZipBulk(@FormDataParam("file") InputStream input) throws IOException {
+    BulkIngest.Session session = bulkIngest.start();
+    ZipInputStream z = new ZipInputStream(input);
+    for (ZipEntry entry; (entry = z.getNextEntry()) != null; ) {
+      if (entry.isDirectory()) {
+        continue;
       }
-      Response r = putXml(name, new String(content));
-      if (r.getStatus() >= 500) {
-        status = r.getStatus();
-        break;
-      } else if (r.getStatus() > 200 && status < 300) {
-        status = r.getStatus();
+      String id = documentId(entry);
+      byte[] content = readEntry(z, entry);
+      if (content == null) {
+        ElasticBackend.PutResult r = tooLarge(id);
+        session.reject(id, r.status, r.message);
+      } else {
+        session.add(id, content);
       }
     }
-    return Response.status(status).build();
+    return Response.ok(session.finish()).build();
+  }
+
+  // Document id for a zip entry: its name, without .xml extension.
+  private static String documentId(ZipEntry entry) {
+    String name = entry.getName();
+    if (name.endsWith(".xml")) {
+      name = name.substring(0, name.length() - 4);
+    }
+    return name;
+  }
+
+  // Reads a zip entry, whose size may be unknown (-1). Returns null if it's larger than the maximum.
+  private byte[] readEntry(ZipInputStream z, ZipEntry entry) throws IOException {
+    long maxSize = Math.min(config.maxZipEntrySize.toBytes(), Integer.MAX_VALUE - 8);
+    if (entry.getSize() > maxSize) {
+      return null;
+    }
+    ByteArrayOutputStream content = new ByteArrayOutputStream(entry.getSize() >= 0 ? (int) entry.getSize() : 8192);
+    EntryStream in = new EntryStream(z, maxSize);
+    byte[] buf = new byte[8192];
+    try {
+      for (int n; (n = in.read(buf)) >= 0; ) {
+        content.write(buf, 0, n);
+      }
+    } catch (IOException e) {
+      if (in.exceeded) {
+        return null;
+      }
+      throw e;
+    }
+    return content.toByteArray();
+  }
+
+  static class Config {
+    // Maximum size of a single (uncompressed) file in an uploaded zip file.
+    @JsonProperty
+    @NotNull
+    Size maxZipEntrySize = Size.megabytes(64);
+  }
+
+  // Contents of the current entry of a zip file. Reading more than max bytes from it fails.
+  // Closing it leaves the zip file open, so parsers that close their input can read from it.
+  private static class EntryStream extends FilterInputStream {
+    private final long max;
+    private long count = 0;
+    boolean exceeded = false;
+
+    EntryStream(ZipInputStream in, long max) {
+      super(in);
+      this.max = max;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) {
+        count(1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = in.read(b, off, len);
+      if (n > 0) {
+        count(n);
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(n);
+      count(skipped);
+      return skipped;
+    }
+
+    private void count(long n) throws IOException {
+      count += n;
+      if (count > max) {
+        exceeded = true;
+        throw new IOException(String.format("file too long: max %d bytes", max));
+      }
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() {
+    }
   }
 }
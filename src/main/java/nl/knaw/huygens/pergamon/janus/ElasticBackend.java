@@ -1,26 +1,36 @@
 package nl.knaw.huygens.pergamon.janus;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.health.HealthCheck;
 import com.codahale.metrics.health.HealthCheckRegistry;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
 import io.dropwizard.jackson.Jackson;
+import nl.knaw.huygens.pergamon.janus.xml.AnnotationIds;
 import nl.knaw.huygens.pergamon.janus.xml.TaggedCodepoints;
 import nl.knaw.huygens.pergamon.janus.xml.XmlParser;
 import nu.xom.Document;
 import nu.xom.Element;
 import nu.xom.ParsingException;
 import org.apache.commons.lang3.tuple.Triple;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.entity.StringEntity;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.DocWriteResponse;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.get.GetResponse;
@@ -29,11 +39,13 @@ import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.index.engine.VersionConflictEngineException;
 import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.script.Script;
@@ -47,10 +59,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.core.Response;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.io.UncheckedIOException;
 import java.net.UnknownHostException;
 import java.nio.file.FileAlreadyExistsException;
@@ -58,16 +74,30 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.EMPTY_MAP;
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 import static javax.ws.rs.core.Response.Status.CONFLICT;
@@ -87,8 +117,10 @@ import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
 import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
 import static org.elasticsearch.index.query.QueryBuilders.queryStringQuery;
 import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termsQuery;
 import static org.elasticsearch.index.query.QueryBuilders.wrapperQuery;
 import static org.elasticsearch.search.builder.SearchSourceBuilder.searchSource;
+import static org.elasticsearch.search.sort.SortBuilders.fieldSort;
 
 /**
  * Stores documents and annotations in an Elasticsearch cluster and on disk.
@@ -164,6 +196,9 @@ public class ElasticBackend implements AutoCloseable {
 
   private final Mapping mapping;
 
+  // Generates ids for annotations of XML elements.
+  private final AnnotationIds annotationIds;
+
   final RestHighLevelClient hiClient;
   private final RestClient loClient;
   private final String documentIndex;
@@ -171,6 +206,16 @@ public class ElasticBackend implements AutoCloseable {
 
   private final String esSearchEndpoint;
 
+  // Longer than the refresh interval of the annotation index (Elasticsearch's default is one second).
+  private static final long REFRESH_GRACE_SECONDS = 5;
+
+  // Annotations under each root (document), in order, for recently read documents.
+  private final Cache<String, List<Annotation>> annotationCache;
+  // Roots whose annotations were written to recently. Searches may not reflect such writes
+  // until the index has been refreshed, so their results are not cached.
+  private final Cache<String, Boolean> recentWrites =
+    CacheBuilder.newBuilder().expireAfterWrite(REFRESH_GRACE_SECONDS, TimeUnit.SECONDS).build();
+
   // Storage of originals. The OriginalStore uses locking to serialize concurrent updates
   // to the originals. We use that to also serialize concurrent updates to the Elasticsearch
   // indices, but we permit concurrent queries without locking, so clients may see
@@ -178,6 +223,10 @@ public class ElasticBackend implements AutoCloseable {
   // consistency semantics.
   private final OriginalStore origStore;
 
+  // Runs whatever follows an asynchronous Elasticsearch request. Methods named *Async return
+  // futures that complete on it; their synchronous counterparts wait for those.
+  private final Executor callbacks;
+
   /**
    * Construct Backend instance with a list of backing Elasticsearch connections.
    *
@@ -185,18 +234,30 @@ public class ElasticBackend implements AutoCloseable {
    *                      where the port is optional and defaults to 9200.
    * @param documentIndex Name of the document index.
    * @param documentType  Name of the document type.
+   * @param originals     Storage of originals.
+   * @param annotationIds Generator for ids of annotations of XML elements.
+   * @param annotationCacheBytes Approximate maximum size of the cache of annotations per document.
+   * @param callbacks     Runs the continuations of asynchronous requests.
    * @throws UnknownHostException
    */
   public ElasticBackend(List<String> hosts, String documentIndex, String documentType, Mapping mapping,
-                        Path storageDir)
-    throws IOException {
-    this(hosts, documentIndex, documentType, ANNOTATION_INDEX, ANNOTATION_TYPE, mapping, storageDir);
+                        OriginalStore originals, AnnotationIds annotationIds, long annotationCacheBytes,
+                        Executor callbacks) {
+    this(hosts, documentIndex, documentType, ANNOTATION_INDEX, ANNOTATION_TYPE, mapping, originals, annotationIds,
+      annotationCacheBytes, callbacks);
   }
 
   // Arguments annotation{Index,Type} are for test purposes only.
   ElasticBackend(List<String> hosts, String documentIndex, String documentType,
                  String annotationIndex, String annotationType, Mapping mapping, Path storageDir)
     throws IOException {
+    this(hosts, documentIndex, documentType, annotationIndex, annotationType, mapping,
+      new OriginalStore(storageDir, 200), AnnotationIds.UUID, 0, ForkJoinPool.commonPool());
+  }
+
+  ElasticBackend(List<String> hosts, String documentIndex, String documentType,
+                 String annotationIndex, String annotationType, Mapping mapping, OriginalStore originals,
+                 AnnotationIds annotationIds, long annotationCacheBytes, Executor callbacks) {
     if (Objects.equals(documentIndex, annotationIndex) || Objects.equals(annotationType, documentType)) {
       throw new IllegalArgumentException("documents shouldn't be stored in the annotation index");
     }
@@ -210,7 +271,14 @@ public class ElasticBackend implements AutoCloseable {
     this.documentIndex = documentIndex;
     this.documentType = documentType;
     this.mapping = mapping;
-    this.origStore = new OriginalStore(storageDir, 200); // TODO make configurable
+    this.annotationIds = annotationIds;
+    this.annotationCache = CacheBuilder.newBuilder()
+                                       .maximumWeight(annotationCacheBytes)
+                                       .weigher((String root, List<Annotation> anns) -> weight(anns))
+                                       .recordStats()
+                                       .build();
+    this.origStore = originals;
+    this.callbacks = callbacks;
 
     loClient = RestClient.builder(hosts.stream()
                                        .map(ElasticBackend::parseAddr)
@@ -286,6 +354,18 @@ public class ElasticBackend implements AutoCloseable {
     registry.register("ES index exists health", new EsIndexExistsHealthCheck());
   }
 
+  public void registerMetrics(MetricRegistry registry) {
+    registry.register(name(ElasticBackend.class, "annotationCache", "hits"),
+      (Gauge<Long>) () -> annotationCache.stats().hitCount());
+    registry.register(name(ElasticBackend.class, "annotationCache", "misses"),
+      (Gauge<Long>) () -> annotationCache.stats().missCount());
+    registry.register(name(ElasticBackend.class, "annotationCache", "evictions"),
+      (Gauge<Long>) () -> annotationCache.stats().evictionCount());
+    registry.register(name(ElasticBackend.class, "annotationCache", "size"),
+      (Gauge<Long>) annotationCache::size);
+    origStore.registerMetrics(registry);
+  }
+
   @Override
   public void close() throws Exception {
     loClient.close();
@@ -341,11 +421,12 @@ public class ElasticBackend implements AutoCloseable {
    * Get the single annotation with the given id.
    */
   public Annotation getAnnotation(String id) {
-    GetResponse response = get(annotationIndex, annotationType, id);
-    if (!response.isExists()) {
-      return null;
-    }
-    return makeAnnotation(response.getSourceAsMap(), id);
+    return await(getAnnotationAsync(id));
+  }
+
+  public CompletableFuture<Annotation> getAnnotationAsync(String id) {
+    return getAsync(annotationIndex, annotationType, id)
+      .thenApply(response -> response.isExists() ? makeAnnotation(response.getSourceAsMap(), id) : null);
   }
 
   /**
@@ -359,18 +440,92 @@ public class ElasticBackend implements AutoCloseable {
    * Find the document with the given id.
    */
   public Optional<Map<String, Object>> findDocument(String id) {
+    return await(findDocumentAsync(id));
+  }
+
+  public CompletableFuture<Optional<Map<String, Object>>> findDocumentAsync(String id) {
+    return getAsync(documentIndex, documentType, id)
+      .thenApply(response -> response.isSourceEmpty() ? Optional.<Map<String, Object>>empty()
+        : Optional.of(response.getSourceAsMap()))
+      .exceptionally(e -> {
+        if (noSuchIndex(e)) {
+          return Optional.empty();
+        }
+        throw asCompletionException(e);
+      });
+  }
+
+  /**
+   * Finds the documents with the given ids, with a single multi-get.
+   * Returns the sources of those that exist, by id.
+   */
+  public Map<String, Map<String, Object>> findDocuments(Collection<String> ids) {
+    return findDocuments(ids, null);
+  }
+
+  /**
+   * Like {@link #findDocuments(Collection)}, but the sources contain only the given fields,
+   * or are empty if fields is empty. If fields is null, the sources are complete.
+   */
+  public Map<String, Map<String, Object>> findDocuments(Collection<String> ids, @Nullable Collection<String> fields) {
+    return await(findDocumentsAsync(ids, fields));
+  }
+
+  public CompletableFuture<Map<String, Map<String, Object>>> findDocumentsAsync(Collection<String> ids,
+                                                                                @Nullable Collection<String> fields) {
+    if (ids.isEmpty()) {
+      return CompletableFuture.completedFuture(Collections.emptyMap());
+    }
+    String body;
     try {
-      final GetResponse response = get(documentIndex, documentType, id);
-      if (response.isSourceEmpty()) {
-        return Optional.empty();
+      body = mapper.writeValueAsString(Collections.singletonMap("ids", ids));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    Map<String, String> params = fields == null ? Collections.emptyMap()
+      : Collections.singletonMap("_source", fields.isEmpty() ? "false" : String.join(",", fields));
+    return performRequestAsync("POST", String.format("/%s/%s/_mget", documentIndex, documentType), params,
+      new StringEntity(body, APPLICATION_JSON)).thenApply(response -> {
+      Map<String, Map<String, Object>> result = new HashMap<>();
+      try (InputStream in = response.getEntity().getContent()) {
+        MultiGetResponse got = mapper.readValue(in, MultiGetResponse.class);
+        for (MultiGetResponse.Doc doc : got.docs) {
+          // Missing documents, and documents in a missing index, are not found.
+          if (doc.found) {
+            // No _source at all if none was asked for.
+            result.put(doc.id, doc.source == null ? Collections.emptyMap() : doc.source);
+          }
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
       }
-      //return Optional.of((String) response.getSourceAsMap().get("body"));
-      return Optional.of(response.getSourceAsMap());
-    } catch (ElasticsearchStatusException e) {
-      if (noSuchIndex(e)) {
-        return Optional.empty();
+      return result;
+    }).exceptionally(e -> {
+      // No index yet.
+      if (unwrap(e) instanceof ResponseException &&
+        ((ResponseException) unwrap(e)).getResponse().getStatusLine().getStatusCode() == 404) {
+        return Collections.emptyMap();
       }
-      throw e;
+      throw asCompletionException(e);
+    });
+  }
+
+  // The parts of the response to _mget that we use.
+  @JsonIgnoreProperties(ignoreUnknown = true)
+  private static class MultiGetResponse {
+    @JsonProperty
+    List<Doc> docs = Collections.emptyList();
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    static class Doc {
+      @JsonProperty("_id")
+      String id;
+
+      @JsonProperty
+      boolean found;
+
+      @JsonProperty("_source")
+      Map<String, Object> source;
     }
   }
 
@@ -382,65 +537,316 @@ public class ElasticBackend implements AutoCloseable {
    * If recursive, get annotations on annotations as well.
    */
   public DocAndAnnotations getWithAnnotations(String id, boolean recursive) {
-    return findDocument(id).map(body -> addAnnotations(id, body, recursive))
-                           .orElse(null);
+    return await(getWithAnnotationsAsync(id, recursive));
   }
 
-  private DocAndAnnotations addAnnotations(String id, Map<String, Object> body, boolean recursive) {
-    final List<Annotation> annotations = getAnnotations(id, null, recursive, true, new ArrayList<>());
-    return new DocAndAnnotations(id, body, annotations);
+  public CompletableFuture<DocAndAnnotations> getWithAnnotationsAsync(String id, boolean recursive) {
+    return findDocumentAsync(id).thenCompose(body -> body.isPresent() ? addAnnotations(id, body.get(), recursive)
+      : CompletableFuture.completedFuture(null));
+  }
+
+  private CompletableFuture<DocAndAnnotations> addAnnotations(String id, Map<String, Object> body,
+                                                              boolean recursive) {
+    return rootAnnotations(id).thenApply(
+      all -> new DocAndAnnotations(id, body, select(all, id, recursive, Integer.MAX_VALUE, null)));
+  }
+
+  /*
+   * All annotations under root, which must be a document, in order.
+   * Read through the annotation cache. The result must not be modified.
+   */
+  private CompletableFuture<List<Annotation>> rootAnnotations(String root) {
+    List<Annotation> cached = annotationCache.getIfPresent(root);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    }
+    return getAnnotations(root, null, true, true, new ArrayList<>()).thenApply(fetched -> {
+      List<Annotation> annotations = Collections.unmodifiableList(fetched);
+      if (recentWrites.getIfPresent(root) == null) {
+        annotationCache.put(root, annotations);
+        // Don't keep the result if a write came in since we checked.
+        if (recentWrites.getIfPresent(root) != null) {
+          annotationCache.invalidate(root);
+        }
+      }
+      return annotations;
+    });
+  }
+
+  /*
+   * Must be called after every write that changes the annotations under root
+   * (a document). Otherwise, readers may see a stale list of annotations.
+   */
+  void invalidateAnnotations(String root) {
+    recentWrites.put(root, true);
+    annotationCache.invalidate(root);
+  }
+
+  /*
+   * From the annotations under a root, selects at most limit annotations on id (recursive)
+   * or directly on id (non-recursive), after the annotation with id after (if not null).
+   * Returns null if after is not among them.
+   */
+  private static List<Annotation> select(List<Annotation> rootAnnotations, String id, boolean recursive, int limit,
+                                         @Nullable String after) {
+    List<Annotation> result = new ArrayList<>();
+    boolean started = after == null;
+    for (Annotation ann : rootAnnotations) {
+      if (result.size() >= limit) {
+        break;
+      }
+      if (!started) {
+        started = ann.id.equals(after);
+      } else if (recursive || id.equals(ann.target)) {
+        result.add(ann);
+      }
+    }
+    return started ? result : null;
+  }
+
+  // Approximate size in memory of a list of annotations, in bytes.
+  private static int weight(List<Annotation> annotations) {
+    long size = 16 + 8L * annotations.size();
+    for (Annotation ann : annotations) {
+      size += 96 + weight(ann.id) + weight(ann.target) + weight(ann.type) + weight(ann.body) + weight(ann.source);
+      for (Map.Entry<String, String> attr : ann.attributes.entrySet()) {
+        size += 48 + weight(attr.getKey()) + weight(attr.getValue());
+      }
+    }
+    return (int) Math.min(size, Integer.MAX_VALUE);
+  }
+
+  private static int weight(@Nullable String s) {
+    return s == null ? 0 : 40 + 2 * s.length();
   }
 
   /**
    * Get annotations belong to id, optionally satisfying the query string q.
    * <p>
-   * If recursive, get annotations on annotations as well.
+   * If recursive, get annotations on annotations as well. These follow the annotations
+   * they are on, level by level.
    */
   public List<Annotation> getAnnotations(String id, @Nullable String q, boolean recursive) {
+    return await(getAnnotationsAsync(id, q, recursive));
+  }
+
+  public CompletableFuture<List<Annotation>> getAnnotationsAsync(String id, @Nullable String q, boolean recursive) {
     return getAnnotations(id, q, recursive, false, new ArrayList<>());
   }
 
+  /**
+   * Gets the annotations directly on each of targets (documents or annotations), in order,
+   * with one search per chunk of targets rather than one per target.
+   */
+  public Map<String, List<Annotation>> getAnnotationsOn(Collection<String> targets) {
+    Map<String, List<Annotation>> result = new HashMap<>();
+    List<String> uncached = new ArrayList<>();
+    for (String target : targets) {
+      List<Annotation> cached = annotationCache.getIfPresent(target);
+      if (cached != null) {
+        result.put(target, select(cached, target, false, Integer.MAX_VALUE, null));
+      } else {
+        result.put(target, new ArrayList<>());
+        uncached.add(target);
+      }
+    }
+
+    // The hits are in order, so the annotations on each target are too.
+    for (int i = 0; i < uncached.size(); i += TERMS_CHUNK) {
+      List<String> chunk = uncached.subList(i, Math.min(i + TERMS_CHUNK, uncached.size()));
+      searchAnnotations(annotationQuery(termsQuery("target", chunk), null), Integer.MAX_VALUE, null,
+        ann -> result.get(ann.target).add(ann));
+    }
+    return result;
+  }
+
+  /**
+   * Get at most limit annotations on the document with the given id, optionally satisfying
+   * the query string q, in the order of the document's tags.
+   * <p>
+   * If recursive, get annotations on annotations as well.
+   * <p>
+   * If after is not null, it must be the id of an annotation that was returned by a previous
+   * call with the same arguments. The annotations that follow it are returned.
+   */
+  public List<Annotation> getDocumentAnnotations(String id, @Nullable String q, boolean recursive, int limit,
+                                                 @Nullable String after) {
+    return await(getDocumentAnnotationsAsync(id, q, recursive, limit, after));
+  }
+
+  public CompletableFuture<List<Annotation>> getDocumentAnnotationsAsync(String id, @Nullable String q,
+                                                                         boolean recursive, int limit,
+                                                                         @Nullable String after) {
+    if (q == null) {
+      // Fetching everything means we might as well fill the cache.
+      if (limit == Integer.MAX_VALUE && after == null) {
+        return rootAnnotations(id).thenApply(all -> select(all, id, recursive, limit, null));
+      }
+      List<Annotation> cached = annotationCache.getIfPresent(id);
+      List<Annotation> selected = cached == null ? null : select(cached, id, recursive, limit, after);
+      if (selected != null) {
+        return CompletableFuture.completedFuture(selected);
+      }
+    }
+
+    List<Annotation> result = new ArrayList<>();
+    QueryBuilder query = annotationQuery(termQuery(recursive ? "root" : "target", id), q);
+    CompletableFuture<Object[]> cursor = after == null ? CompletableFuture.completedFuture(null) : cursorAsync(after);
+    return cursor.thenCompose(searchAfter -> searchAnnotationsAsync(query, limit, searchAfter, result))
+                 .thenApply(done -> result);
+  }
+
+  /**
+   * Like {@link #getDocumentAnnotations}, but passes the annotations to sink as they are fetched,
+   * instead of collecting them in a list.
+   */
+  public void forEachDocumentAnnotation(String id, @Nullable String q, boolean recursive, int limit,
+                                        @Nullable String after, Consumer<Annotation> sink) {
+    // Use the cache, but don't fill it; this method is meant for documents too large for that.
+    List<Annotation> cached = q == null ? annotationCache.getIfPresent(id) : null;
+    List<Annotation> selected = cached == null ? null : select(cached, id, recursive, limit, after);
+    if (selected != null) {
+      selected.forEach(sink);
+      return;
+    }
+    searchAnnotations(annotationQuery(termQuery(recursive ? "root" : "target", id), q), limit,
+      after == null ? null : cursor(after), sink);
+  }
+
   // Fields of _source that we want below.
   private static final String[] ANNOTATION_FIELDS =
     new String[]{"attrib", "start", "end", "type", "source", "target", "body"};
 
+  // Number of annotations fetched per search request.
+  private static final int PAGE_SIZE = 1000;
+
+  // Sort value of annotations that have no order, i.e., those that do not represent XML tags.
+  private static final int NO_ORDER = Integer.MAX_VALUE;
+
+  // Maximum number of targets in a single terms query.
+  private static final int TERMS_CHUNK = 1024;
+
   /*
-   * Gets annotations on id, optionally filtered by query q.
+   * Gets annotations on id, optionally filtered by query q, and adds them to result.
    * If recursive, gets annotations on annotations etc.
    * If isRoot, id must be a document; we then use the root field for optimized fetching.
    */
-  private List<Annotation> getAnnotations(String id, @Nullable String q, boolean recursive, boolean isRoot,
-                                          List<Annotation> result) {
-    BoolQueryBuilder query = boolQuery().filter(termQuery(recursive && isRoot ? "root" : "target", id));
+  private CompletableFuture<List<Annotation>> getAnnotations(String id, @Nullable String q, boolean recursive,
+                                                             boolean isRoot, List<Annotation> result) {
+    int level = result.size();
+    CompletableFuture<Void> done = searchAnnotationsAsync(
+      annotationQuery(termQuery(recursive && isRoot ? "root" : "target", id), q), Integer.MAX_VALUE, null, result);
+
+    // If id is a root (a document), searching for the "root" attribute
+    // that caches its id suffices. Otherwise, we have to query recursively.
+    if (recursive && !isRoot) {
+      done = done.thenCompose(ignored -> getAnnotationsOnLevel(level, q, result));
+    }
+    return done.thenApply(ignored -> result);
+  }
+
+  /*
+   * Gets the annotations on result[level:], then those on the annotations found, etc.
+   * We go breadth-first, fetching the annotations on an entire level with one query
+   * (per chunk of targets), so the number of queries is proportional to the depth.
+   */
+  private CompletableFuture<Void> getAnnotationsOnLevel(int level, @Nullable String q, List<Annotation> result) {
+    if (level == result.size()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    List<String> targets = result.subList(level, result.size()).stream()
+                                 .map(ann -> ann.id)
+                                 .collect(Collectors.toList());
+    int next = result.size();
+    CompletableFuture<Void> done = CompletableFuture.completedFuture(null);
+    for (int i = 0; i < targets.size(); i += TERMS_CHUNK) {
+      List<String> chunk = targets.subList(i, Math.min(i + TERMS_CHUNK, targets.size()));
+      done = done.thenCompose(ignored -> searchAnnotationsAsync(annotationQuery(termsQuery("target", chunk), q),
+        Integer.MAX_VALUE, null, result));
+    }
+    return done.thenCompose(ignored -> getAnnotationsOnLevel(next, q, result));
+  }
+
+  private static BoolQueryBuilder annotationQuery(QueryBuilder filter, @Nullable String q) {
+    BoolQueryBuilder query = boolQuery().filter(filter);
     if (q != null) {
       query.must(queryStringQuery(q));
     }
+    return query;
+  }
 
-    SearchResponse response;
-    try {
-      response = hiClient.search(searchRequest(annotationIndex)
-        .types(annotationType)
-        .source(searchSource().query(query)
-                              .fetchSource(ANNOTATION_FIELDS, null)
-                              .sort("order", SortOrder.ASC)
-                              // TODO: should we scroll, or should the client scroll?
-                              .size(1000)));
-    } catch (IOException e) {
-      throw new UncheckedIOException(e);
+  /*
+   * Passes at most limit annotations that match query to sink, in order, starting after
+   * the sort values searchAfter (or at the start, if null).
+   *
+   * Pages through the hits with search_after, so the result is complete even for documents
+   * with many tags. The sort includes the _uid to break ties between annotations without order.
+   *
+   * Runs sink on the calling thread, which waits for each page.
+   */
+  private void searchAnnotations(QueryBuilder query, int limit, @Nullable Object[] searchAfter,
+                                 Consumer<Annotation> sink) {
+    while (limit > 0) {
+      int size = Math.min(PAGE_SIZE, limit);
+      SearchHit[] hits = await(searchAnnotationPage(query, size, searchAfter));
+      for (SearchHit hit : hits) {
+        sink.accept(makeAnnotation(hit.getSourceAsMap(), hit.getId()));
+      }
+
+      if (hits.length < size) {
+        break;
+      }
+      limit -= hits.length;
+      searchAfter = hits[hits.length - 1].getSortValues();
     }
+  }
 
-    List<Annotation> hits = Arrays.stream(response.getHits().getHits())
-                                  .map(hit -> makeAnnotation(hit.getSourceAsMap(), hit.getId()))
-                                  .collect(Collectors.toList());
-    result.addAll(hits);
+  // Like searchAnnotations, but without blocking. The annotations are added to result.
+  private CompletableFuture<Void> searchAnnotationsAsync(QueryBuilder query, int limit,
+                                                         @Nullable Object[] searchAfter, List<Annotation> result) {
+    if (limit <= 0) {
+      return CompletableFuture.completedFuture(null);
+    }
+    int size = Math.min(PAGE_SIZE, limit);
+    return searchAnnotationPage(query, size, searchAfter).thenCompose(hits -> {
+      for (SearchHit hit : hits) {
+        result.add(makeAnnotation(hit.getSourceAsMap(), hit.getId()));
+      }
+      if (hits.length < size) {
+        return CompletableFuture.completedFuture(null);
+      }
+      return searchAnnotationsAsync(query, limit - hits.length, hits[hits.length - 1].getSortValues(), result);
+    });
+  }
 
-    // If id is a root (a document), searching for the "root" attribute
-    // that caches its id suffices. Otherwise, we have to query recursively.
-    if (recursive && !isRoot) {
-      hits.forEach(ann -> getAnnotations(ann.id, q, true, false, result));
+  private CompletableFuture<SearchHit[]> searchAnnotationPage(QueryBuilder query, int size,
+                                                               @Nullable Object[] searchAfter) {
+    SearchSourceBuilder source = searchSource().query(query)
+                                               .fetchSource(ANNOTATION_FIELDS, null)
+                                               .sort(fieldSort("order").order(SortOrder.ASC).missing(NO_ORDER))
+                                               .sort("_uid", SortOrder.ASC)
+                                               .size(size);
+    if (searchAfter != null) {
+      source.searchAfter(searchAfter);
     }
+    SearchRequest request = searchRequest(annotationIndex).types(annotationType).source(source);
+    return this.<SearchResponse>async(listener -> hiClient.searchAsync(request, listener))
+      .thenApply(response -> response.getHits().getHits());
+  }
 
-    return result;
+  // Sort values of the annotation with the given id, for use with search_after.
+  private Object[] cursor(String annotationId) {
+    return await(cursorAsync(annotationId));
+  }
+
+  private CompletableFuture<Object[]> cursorAsync(String annotationId) {
+    return getAsync(annotationIndex, annotationType, annotationId).thenApply(got -> {
+      if (!got.isExists()) {
+        throw new IllegalArgumentException("no annotation " + annotationId);
+      }
+      Object order = got.getSourceAsMap().get("order");
+      return new Object[]{order == null ? NO_ORDER : order, annotationType + "#" + annotationId};
+    });
   }
 
   /**
@@ -450,26 +856,26 @@ public class ElasticBackend implements AutoCloseable {
    * @return List of matching document ids.
    */
   public ListPage listDocs(@Nullable String query, int from, int count) {
-    try {
-      SearchResponse response = hiClient.search(
-        searchRequest(documentIndex)
-          .types(documentType)
-          .source(searchSource().query(query == null ? matchAllQuery() : wrapperQuery(query))
-                                .from(from)
-                                .size(count)));
-
-      return new ListPage(from, response.getHits().getTotalHits(),
+    return await(listDocsAsync(query, from, count));
+  }
+
+  public CompletableFuture<ListPage> listDocsAsync(@Nullable String query, int from, int count) {
+    SearchRequest request = searchRequest(documentIndex)
+      .types(documentType)
+      .source(searchSource().query(query == null ? matchAllQuery() : wrapperQuery(query))
+                            .from(from)
+                            .size(count));
+    return this.<SearchResponse>async(listener -> hiClient.searchAsync(request, listener))
+      .thenApply(response -> new ListPage(from, response.getHits().getTotalHits(),
         Arrays.stream(response.getHits().getHits())
               .map(SearchHit::getId)
-              .collect(Collectors.toList()));
-    } catch (ElasticsearchStatusException e) {
-      if (noSuchIndex(e)) {
-        return ListPage.empty();
-      }
-      throw e;
-    } catch (IOException e) {
-      throw new UncheckedIOException(e);
-    }
+              .collect(Collectors.toList())))
+      .exceptionally(e -> {
+        if (noSuchIndex(e)) {
+          return ListPage.empty();
+        }
+        throw asCompletionException(e);
+      });
   }
 
   private static Annotation makeAnnotation(Map<String, Object> map, String id) {
@@ -499,39 +905,66 @@ public class ElasticBackend implements AutoCloseable {
     return putAnnotation(ann);
   }
 
+  /**
+   * Like {@link #putAnnotation(String, Annotation)}, but without blocking.
+   */
+  public CompletableFuture<PutResult> putAnnotationAsync(@Nullable String target, Annotation ann) {
+    if (ann.id != null) {
+      return CompletableFuture.completedFuture(
+        new PutResult(ann.id, BAD_REQUEST, "annotation may not determine its own id"));
+    }
+    if (target != null && !Objects.equals(target, ann.target)) {
+      return CompletableFuture.completedFuture(new PutResult(null, BAD_REQUEST,
+        String.format("target mismatch: '%s' in path, '%s' in annotation", target, ann.target)));
+    }
+    ann.target = target;
+    return putAnnotationAsync(ann);
+  }
+
   PutResult putAnnotation(Annotation ann) throws IOException {
-    try {
-      // If there's a document with the id, we annotate that, else the annotation with the id.
-      // XXX we need to be smarter, e.g., address the document by index/type/id.
-      GetResponse got = get(documentIndex, documentType, ann.target);
-      String root;
-      if (got.isExists()) {
-        root = ann.target;
-      } else {
-        got = get(annotationIndex, annotationType, ann.target);
-        if (!got.isExists()) {
-          return new PutResult(null, 404);
-        }
-        root = (String) got.getSourceAsMap().get("root");
-      }
-
-      IndexResponse response = hiClient.index(indexRequest(annotationIndex).type(annotationType).id(ann.id).source(
-        jsonBuilder().startObject()
-                     .field("start", ann.start)
-                     .field("end", ann.end)
-                     .field("attrib", ann.attributes)
-                     .field("body", ann.body)
-                     .field("type", ann.type)
-                     .field("source", ann.source)
-                     .field("target", ann.target)
-                     .field("root", root)
-                     .endObject()));
-      return new PutResult(response.getId(), response.status().getStatus());
-    } catch (VersionConflictEngineException e) {
-      return new PutResult(null, CONFLICT, e.toString());
-    } catch (Throwable e) {
+    return await(putAnnotationAsync(ann));
+  }
+
+  private CompletableFuture<PutResult> putAnnotationAsync(Annotation ann) {
+    // If there's a document with the id, we annotate that, else the annotation with the id.
+    // XXX we need to be smarter, e.g., address the document by index/type/id.
+    return getAsync(documentIndex, documentType, ann.target).thenCompose(doc -> {
+      if (doc.isExists()) {
+        return CompletableFuture.completedFuture(ann.target);
+      }
+      return getAsync(annotationIndex, annotationType, ann.target)
+        .thenApply(got -> got.isExists() ? (String) got.getSourceAsMap().get("root") : null);
+    }).thenCompose(root -> {
+      if (root == null) {
+        return CompletableFuture.completedFuture(new PutResult(null, 404));
+      }
+      IndexRequest request;
+      try {
+        request = indexRequest(annotationIndex).type(annotationType).id(ann.id).source(
+          jsonBuilder().startObject()
+                       .field("start", ann.start)
+                       .field("end", ann.end)
+                       .field("attrib", ann.attributes)
+                       .field("body", ann.body)
+                       .field("type", ann.type)
+                       .field("source", ann.source)
+                       .field("target", ann.target)
+                       .field("root", root)
+                       .endObject());
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return this.<IndexResponse>async(listener -> hiClient.indexAsync(request, listener)).thenApply(response -> {
+        invalidateAnnotations(root);
+        return new PutResult(response.getId(), response.status().getStatus());
+      });
+    }).exceptionally(e -> {
+      e = unwrap(e);
+      if (e instanceof VersionConflictEngineException) {
+        return new PutResult(null, CONFLICT, e.toString());
+      }
       return errorResult(e);
-    }
+    });
   }
 
   public Response addBody(String id, String bodyId) throws IOException {
@@ -561,6 +994,7 @@ public class ElasticBackend implements AutoCloseable {
     ann.put("body", bodyId);
 
     IndexResponse idxR = hiClient.index(indexRequest(annotationIndex).type(annotationType).id(annId).source(ann));
+    invalidateAnnotations((String) ann.get("root"));
     return Response.status(idxR.status().getStatus()).entity(ann).build();
   }
 
@@ -628,74 +1062,196 @@ public class ElasticBackend implements AutoCloseable {
       return new PutResult(id, CONFLICT);
     } catch (TimeoutException e) {
       return new PutResult(id, REQUEST_TIMEOUT);
-    } catch (ParsingException e) {
+    } catch (ParsingException | XMLStreamException e) {
       return new PutResult(id, BAD_REQUEST, e.toString());
     }
   }
 
-  private PutResult putXml(String docId, String document, boolean overwrite) throws IOException, ParsingException {
-    // TODO: handle partial failures better.
+  /*
+   * Applies the mapping to an XML document and converts its body field to text-with-annotations.
+   * When the mapping permits, this is done in a single streaming pass, without building a tree.
+   */
+  Triple<String, TaggedCodepoints, Map<String, String>> convertXml(String docId, String document)
+    throws IOException, ParsingException, XMLStreamException {
+    if (mapping.streamable()) {
+      return convertXml(docId, XmlParser.streamFrom(new StringReader(document)));
+    }
+    return convertXml(docId, XmlParser.fromString(document));
+  }
+
+  Triple<String, TaggedCodepoints, Map<String, String>> convertXml(String docId, InputStream document)
+    throws IOException, ParsingException, XMLStreamException {
+    if (mapping.streamable()) {
+      return convertXml(docId, XmlParser.streamFrom(document));
+    }
+    return convertXml(docId, XmlParser.fromStream(document));
+  }
 
-    Document xml = XmlParser.fromString(document);
+  private Triple<String, TaggedCodepoints, Map<String, String>> convertXml(String docId, XMLStreamReader in)
+    throws XMLStreamException {
+    return mapping.apply(in, body -> new TaggedCodepoints(body, docId, annotationIds));
+  }
+
+  private Triple<String, TaggedCodepoints, Map<String, String>> convertXml(String docId, Document xml)
+    throws IOException, ParsingException {
     Triple<String, Element, Map<String, String>> mapped = mapping.apply(xml);
-    // first field is the special "body" field
-    TaggedCodepoints body = new TaggedCodepoints(mapped.getMiddle(), docId);
-    String bodyField = mapped.getLeft();
-    Map<String, String> fields = mapped.getRight();
+    return Triple.of(mapped.getLeft(), new TaggedCodepoints(mapped.getMiddle(), docId, annotationIds),
+      mapped.getRight());
+  }
 
-    XContentBuilder doc = jsonBuilder().startObject()
-                                       .field(bodyField, body.text());
-    doc.field(bodyField, body.text());
-    for (Map.Entry<String, String> entry : fields.entrySet()) {
-      doc.field(entry.getKey(), entry.getValue());
-    }
-    doc.endObject();
+  private PutResult putXml(String docId, String document, boolean overwrite)
+    throws IOException, ParsingException, XMLStreamException {
+    return putXml(docId, convertXml(docId, document), overwrite);
+  }
 
-    IndexResponse response = hiClient.index(indexRequest(documentIndex)
-      .type(documentType).id(docId).create(!overwrite)
-      .source(doc));
+  private PutResult putXml(String docId, Triple<String, TaggedCodepoints, Map<String, String>> mapped,
+                           boolean overwrite) throws IOException {
+    // TODO: handle partial failures better.
+
+    TaggedCodepoints body = mapped.getMiddle();
+
+    IndexResponse response = hiClient.index(documentRequest(docId, mapped, overwrite));
     int status = response.status().getStatus();
     if (!success(status)) {
       return new PutResult(null, status);
     }
-    if (response.getResult().equals(DocWriteResponse.Result.UPDATED)) {
-      // If we're overwriting docId, we need to delete the annotations separately,
-      // because the ids are going to be freshly generated.
-      deleteAnnotations(docId);
-    }
-
-    List<Annotation> tags = body.tags();
-    BulkRequest bulk = bulkRequest();
-    for (int i = 0; i < tags.size(); i++) {
-      Annotation ann = tags.get(i);
-      bulk.add(indexRequest(annotationIndex).type(annotationType).id(ann.id)
-                                            .create(true)
-                                            .source(jsonBuilder()
-                                              .startObject()
-                                              .field("start", ann.start)
-                                              .field("end", ann.end)
-                                              .field("attrib", ann.attributes)
-                                              .field("type", ann.type)
-                                              .field("source", "xml")
-                                              .field("target", ann.target)
-                                              .field("root", docId)
-                                              // The order field is only used to sort, so that we get XML tags back
-                                              // in exactly the order they appeared in the original.
-                                              // XXX do we need this?
-                                              .field("order", i)
-                                              .endObject()
-                                            ));
-    }
-
-    if (bulk.numberOfActions() > 0) {
-      for (BulkItemResponse item : hiClient.bulk(bulk)) {
-        status = item.status().getStatus();
-        if (!success(status)) {
-          return new PutResult(docId, status);
+    try {
+      BulkRequest bulk = bulkRequest();
+      boolean updated = response.getResult().equals(DocWriteResponse.Result.UPDATED);
+      // With deterministic ids, tags that are still present are overwritten in place,
+      // so only those beyond the new number of tags need to go. That doesn't work for tags
+      // whose ids came from another generator, e.g., before annotationIds was changed.
+      if (updated && !(annotationIds.deterministic() && deleteTags(docId, body.size()))) {
+        updateTags(bulk, docId, body);
+      } else {
+        for (int i = 0; i < body.size(); i++) {
+          bulk.add(tagRequest(docId, body.id(i), body, i, overwrite));
         }
       }
+
+      if (bulk.numberOfActions() > 0) {
+        for (BulkItemResponse item : hiClient.bulk(bulk)) {
+          status = item.status().getStatus();
+          if (!success(status)) {
+            return new PutResult(docId, status);
+          }
+        }
+      }
+      return new PutResult(docId, 201);
+    } finally {
+      invalidateAnnotations(docId);
+    }
+  }
+
+  /*
+   * Request to index the document produced by convertXml.
+   * If !overwrite, the request fails if the document already exists.
+   */
+  IndexRequest documentRequest(String docId, Triple<String, TaggedCodepoints, Map<String, String>> mapped,
+                               boolean overwrite) throws IOException {
+    // first field is the special "body" field
+    XContentBuilder doc = jsonBuilder().startObject()
+                                       .field(mapped.getLeft(), mapped.getMiddle().text());
+    for (Map.Entry<String, String> entry : mapped.getRight().entrySet()) {
+      doc.field(entry.getKey(), entry.getValue());
+    }
+    doc.endObject();
+
+    return indexRequest(documentIndex).type(documentType).id(docId).create(!overwrite).source(doc);
+  }
+
+  /*
+   * Adds to bulk the actions that turn the previous tags of docId into those of body.
+   *
+   * Tags that are still present (see TagDiff) keep their ids, so annotations on them remain valid.
+   * They are only reindexed if their offsets or order changed. Tags that have gone are deleted,
+   * along with the annotations on them.
+   */
+  private void updateTags(BulkRequest bulk, String docId, TaggedCodepoints body) throws IOException {
+    refreshIfRecent(docId);
+    List<Annotation> old = new ArrayList<>();
+    searchAnnotations(boolQuery().filter(termQuery("target", docId)).filter(termQuery("source", "xml")),
+      Integer.MAX_VALUE, null, old::add);
+
+    int[] match = TagDiff.match(old, body);
+    boolean[] kept = new boolean[old.size()];
+    for (int i = 0; i < body.size(); i++) {
+      int j = match[i];
+      if (j < 0) {
+        bulk.add(tagRequest(docId, body.id(i), body, i, false));
+        continue;
+      }
+      kept[j] = true;
+      Annotation tag = old.get(j);
+      if (i != j || tag.start != body.start(i) || tag.end != body.end(i)) {
+        bulk.add(tagRequest(docId, tag.id, body, i, true));
+      }
+    }
+
+    List<String> removed = new ArrayList<>();
+    for (int j = 0; j < old.size(); j++) {
+      if (!kept[j]) {
+        removed.add(old.get(j).id);
+      }
+    }
+    deleteAnnotationTrees(docId, removed);
+  }
+
+  // Request to index the i'th tag of body, under the given id, as an annotation on docId.
+  IndexRequest tagRequest(String docId, String id, TaggedCodepoints body, int i, boolean overwrite)
+    throws IOException {
+    // Serialize straight from the TaggedText, without building Annotations.
+    return indexRequest(annotationIndex).type(annotationType).id(id)
+                                        .create(!overwrite)
+                                        .source(jsonBuilder()
+                                          .startObject()
+                                          .field("start", body.start(i))
+                                          .field("end", body.end(i))
+                                          .field("attrib", body.attributes(i))
+                                          .field("type", body.type(i))
+                                          .field("source", "xml")
+                                          .field("target", docId)
+                                          .field("root", docId)
+                                          // The order field is only used to sort, so that we get XML tags back
+                                          // in exactly the order they appeared in the original.
+                                          // XXX do we need this?
+                                          .field("order", i)
+                                          .endObject()
+                                        );
+  }
+
+  /**
+   * Stores the original of a new document. The store is locked until the returned WriteOp is closed.
+   * The write is durable once batch has been synced.
+   */
+  OriginalStore.WriteOp putOriginal(String id, byte[] content, OriginalStore.WriteBatch batch)
+    throws TimeoutException {
+    return origStore.put(id, content, batch);
+  }
+
+  OriginalStore.WriteBatch originalsBatch() {
+    return origStore.batch();
+  }
+
+  BulkResponse bulk(BulkRequest request) throws IOException {
+    return hiClient.bulk(request);
+  }
+
+  /*
+   * Undoes a put of id whose indexing failed: deletes the original and whatever part of the document
+   * and its annotations made it to Elasticsearch. Does nothing if the original no longer has content,
+   * i.e., if it has been replaced or deleted since.
+   */
+  void undoPut(String id, byte[] content) throws IOException, TimeoutException {
+    try (OriginalStore.WriteOp del = origStore.delete(id, content)) {
+      if (del.noop()) {
+        return;
+      }
+      deleteAnnotations(id);
+      invalidateAnnotations(id);
+      hiClient.delete(new DeleteRequest(documentIndex, documentType, id));
+      del.commit();
     }
-    return new PutResult(docId, 201);
   }
 
   /**
@@ -706,6 +1262,7 @@ public class ElasticBackend implements AutoCloseable {
 
     try (OriginalStore.WriteOp del = origStore.delete(id)) {
       deleteAnnotations(id);
+      invalidateAnnotations(id);
       docDel = hiClient.delete(new DeleteRequest(documentIndex, documentType, id));
       del.commit();
     } catch (NoSuchFileException e) {
@@ -720,14 +1277,91 @@ public class ElasticBackend implements AutoCloseable {
   }
 
   private void deleteAnnotations(String id) throws IOException {
-    org.elasticsearch.client.Response annR =
-      loClient.performRequest("POST", String.format("%s/%s/_delete_by_query", annotationIndex, annotationType),
-        Collections.emptyMap(),
-        new StringEntity(
-          mapper.writeValueAsString(
-            ImmutableMap.of("query", ImmutableMap.of("term", ImmutableMap.of("root", id))))));
-    if (annR.getStatusLine().getStatusCode() != 200) {
-      LOG.warn("Got {} when deleting annotation for {}", annR.getStatusLine().getStatusCode(), id);
+    deleteAnnotations(id, annotationIds(boolQuery().filter(termQuery("root", id))));
+  }
+
+  /*
+   * Deletes the XML tags of document id from position from onwards, if its tags have the ids
+   * that annotationIds generates for their positions. Returns false, deleting nothing, if they don't.
+   */
+  private boolean deleteTags(String id, int from) throws IOException {
+    refreshIfRecent(id);
+    List<String> old = annotationIds(boolQuery().filter(termQuery("root", id)).filter(termQuery("source", "xml")));
+    Set<String> generated = new HashSet<>();
+    for (int i = 0; i < old.size(); i++) {
+      generated.add(annotationIds.id(id, i));
+    }
+    if (!generated.containsAll(old)) {
+      return false;
+    }
+    List<String> removed = new ArrayList<>();
+    for (int i = from; i < old.size(); i++) {
+      removed.add(annotationIds.id(id, i));
+    }
+    deleteAnnotations(id, removed);
+    return true;
+  }
+
+  private void refreshIfRecent(String root) throws IOException {
+    if (recentWrites.getIfPresent(root) != null) {
+      // The previous version may not be visible to search yet; a tag we don't see would be left behind.
+      loClient.performRequest("POST", "/" + annotationIndex + "/_refresh");
+    }
+  }
+
+  // Deletes the annotations with the given ids, which are under root, and those on them, recursively.
+  private void deleteAnnotationTrees(String root, List<String> ids) throws IOException {
+    while (!ids.isEmpty()) {
+      deleteAnnotations(root, ids);
+      List<String> next = new ArrayList<>();
+      for (int i = 0; i < ids.size(); i += TERMS_CHUNK) {
+        next.addAll(annotationIds(termsQuery("target", ids.subList(i, Math.min(i + TERMS_CHUNK, ids.size())))));
+      }
+      ids = next;
+    }
+  }
+
+  /*
+   * Deletes the annotations with the given ids, which are under root, with bulk requests.
+   *
+   * This is much cheaper than a _delete_by_query, which takes a snapshot of the index,
+   * refreshes it and conflicts with concurrent writes.
+   */
+  private void deleteAnnotations(String root, List<String> ids) throws IOException {
+    for (int i = 0; i < ids.size(); i += PAGE_SIZE) {
+      BulkRequest bulk = bulkRequest();
+      ids.subList(i, Math.min(i + PAGE_SIZE, ids.size()))
+         .forEach(id -> bulk.add(new DeleteRequest(annotationIndex, annotationType, id)));
+      for (BulkItemResponse item : hiClient.bulk(bulk)) {
+        int status = item.status().getStatus();
+        if (!success(status) && status != 404) {
+          LOG.warn("Got {} when deleting annotation {} of {}", status, item.getId(), root);
+        }
+      }
+    }
+  }
+
+  // Ids of all annotations matching query.
+  private List<String> annotationIds(QueryBuilder query) throws IOException {
+    List<String> ids = new ArrayList<>();
+    Object[] searchAfter = null;
+    while (true) {
+      SearchSourceBuilder source = searchSource().query(query)
+                                                 .fetchSource(false)
+                                                 .sort("_uid", SortOrder.ASC)
+                                                 .size(PAGE_SIZE);
+      if (searchAfter != null) {
+        source.searchAfter(searchAfter);
+      }
+      SearchHit[] hits = hiClient.search(searchRequest(annotationIndex).types(annotationType).source(source))
+                                 .getHits().getHits();
+      for (SearchHit hit : hits) {
+        ids.add(hit.getId());
+      }
+      if (hits.length < PAGE_SIZE) {
+        return ids;
+      }
+      searchAfter = hits[hits.length - 1].getSortValues();
     }
   }
 
@@ -744,13 +1378,45 @@ public class ElasticBackend implements AutoCloseable {
       return r;
     } catch (TimeoutException e) {
       return new PutResult(id, REQUEST_TIMEOUT);
-    } catch (ParsingException e) {
+    } catch (ParsingException | XMLStreamException e) {
+      return new PutResult(id, BAD_REQUEST, e.toString());
+    }
+  }
+
+  /**
+   * Like {@link #updateXml(String, String)}, but reads the document from a stream.
+   * <p>
+   * The document is parsed while it is being copied to the store of originals,
+   * so it is never held in memory as a whole.
+   */
+  public PutResult updateXml(String id, InputStream content) throws IOException {
+    if (id == null) {
+      throw new NullPointerException("id should not be null");
+    }
+    try (OriginalStore.Upload replace = origStore.replace(id, content)) {
+      Triple<String, TaggedCodepoints, Map<String, String>> mapped = convertXml(id, replace.input());
+      if (replace.noop()) {
+        return new PutResult(id, 200);
+      }
+      PutResult r = putXml(id, mapped, true);
+      replace.commit();
+      return r;
+    } catch (TimeoutException e) {
+      return new PutResult(id, REQUEST_TIMEOUT);
+    } catch (ParsingException | XMLStreamException e) {
       return new PutResult(id, BAD_REQUEST, e.toString());
     }
   }
 
   public String getOriginal(String id) throws IOException, TimeoutException {
-    return new String(origStore.get(id));
+    return new String(origStore.get(id), UTF_8);
+  }
+
+  /**
+   * Opens the original of id for streaming. The caller must close it.
+   */
+  public OriginalStore.Original openOriginal(String id) throws IOException, TimeoutException {
+    return origStore.open(id);
   }
 
   @SuppressWarnings("unchecked")
@@ -773,6 +1439,39 @@ public class ElasticBackend implements AutoCloseable {
     return r;
   }
 
+  /**
+   * Like {@link #search(String)}, but without blocking.
+   */
+  public CompletableFuture<org.elasticsearch.client.Response> searchAsync(String query) {
+    return performRequestAsync("GET", esSearchEndpoint, Collections.emptyMap(),
+      new StringEntity(query, APPLICATION_JSON))
+      .exceptionally(e -> {
+        if (unwrap(e) instanceof ResponseException) {
+          return ((ResponseException) unwrap(e)).getResponse();
+        }
+        throw asCompletionException(e);
+      });
+  }
+
+  // Low-level counterpart of async.
+  private CompletableFuture<org.elasticsearch.client.Response> performRequestAsync(String method, String endpoint,
+                                                                                   Map<String, String> params,
+                                                                                   HttpEntity entity) {
+    CompletableFuture<org.elasticsearch.client.Response> future = new CompletableFuture<>();
+    loClient.performRequestAsync(method, endpoint, params, entity, new ResponseListener() {
+      @Override
+      public void onSuccess(org.elasticsearch.client.Response response) {
+        callback(() -> future.complete(response));
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        callback(() -> future.completeExceptionally(e));
+      }
+    });
+    return future;
+  }
+
   // Painless script to find co-occurrences of two fields' values.
   // Because of return type limitations, we have to return a single string
   // to represent a pair. The SEPARATOR is chosen to be as unlikely as possible.
@@ -839,13 +1538,82 @@ public class ElasticBackend implements AutoCloseable {
   }
 
   private GetResponse get(String index, String type, String id) {
+    return await(getAsync(index, type, id));
+  }
+
+  private CompletableFuture<GetResponse> getAsync(String index, String type, String id) {
+    return async(listener -> hiClient.getAsync(getRequest(index).type(type).id(id), listener));
+  }
+
+  /*
+   * Runs an asynchronous client call. The future is completed on the callbacks executor,
+   * so that what depends on it never runs on (let alone blocks) the client's I/O threads.
+   */
+  private <T> CompletableFuture<T> async(Consumer<ActionListener<T>> call) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    call.accept(new ActionListener<T>() {
+      @Override
+      public void onResponse(T response) {
+        callback(() -> future.complete(response));
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        callback(() -> future.completeExceptionally(e));
+      }
+    });
+    return future;
+  }
+
+  private void callback(Runnable task) {
     try {
-      return hiClient.get(getRequest(index).type(type).id(id));
-    } catch (IOException e) {
-      throw new UncheckedIOException(e);
+      callbacks.execute(task);
+    } catch (RejectedExecutionException e) {
+      task.run(); // Shutting down. Better late than never.
     }
   }
 
+  /*
+   * Waits for future, for the synchronous methods. Rethrows its failure as the synchronous
+   * client would: unchecked exceptions as is, IOExceptions as UncheckedIOExceptions.
+   */
+  private static <T> T await(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      Throwable cause = unwrap(e);
+      Throwables.throwIfUnchecked(cause);
+      if (cause instanceof IOException) {
+        throw new UncheckedIOException((IOException) cause);
+      }
+      throw e;
+    }
+  }
+
+  // The exception that failed a future, without the CompletionException that dependent stages wrap it in.
+  private static Throwable unwrap(Throwable e) {
+    return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+  }
+
+  // For rethrowing a failure in a dependent stage of a future.
+  private static CompletionException asCompletionException(Throwable e) {
+    return e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+  }
+
+  /**
+   * Completes response with the result of future, converted by toResponse, or with its failure,
+   * which is then handled as if thrown by a synchronous resource method.
+   */
+  static <T> void resume(AsyncResponse response, CompletableFuture<T> future, Function<T, Response> toResponse) {
+    future.thenApply(toResponse).whenComplete((r, e) -> {
+      if (e == null) {
+        response.resume(r);
+      } else {
+        response.resume(unwrap(e));
+      }
+    });
+  }
+
   private boolean exists(String index, String type, String id) {
     try {
       return hiClient.exists(getRequest(index).type(type).id(id));
@@ -858,6 +1626,11 @@ public class ElasticBackend implements AutoCloseable {
     return e.status() == RestStatus.NOT_FOUND && e.getMessage().contains("no such index");
   }
 
+  private boolean noSuchIndex(Throwable e) {
+    e = unwrap(e);
+    return e instanceof ElasticsearchStatusException && noSuchIndex((ElasticsearchStatusException) e);
+  }
+
   private static boolean success(int status) {
     return status >= 200 && status < 300;
   }
@@ -865,7 +1638,7 @@ public class ElasticBackend implements AutoCloseable {
   /**
    * Returned by PUT/POST methods.
    */
-  class PutResult {
+  static class PutResult {
     /**
      * Id of document or annotation that was created.
      */
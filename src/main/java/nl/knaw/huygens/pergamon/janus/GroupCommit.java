@@ -0,0 +1,119 @@
+package nl.knaw.huygens.pergamon.janus;
+
+import com.google.common.base.Throwables;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Makes files durable with fsyncs that are shared between concurrent callers.
+ * <p>
+ * The first caller to arrive leads a group. It waits for others to join until the interval has
+ * passed or the group has reached its maximum size, then syncs the paths of the whole group.
+ * Everyone in the group returns when that is done. Callers that arrive in the meantime form the
+ * next group, so syncing one group overlaps with collecting the next.
+ */
+class GroupCommit {
+  interface Syncer {
+    void sync(Path path) throws IOException;
+  }
+
+  private static class Group {
+    final Set<Path> paths = new LinkedHashSet<>();
+    int size = 0;
+    final CompletableFuture<Void> done = new CompletableFuture<>();
+  }
+
+  private final long interval; // nanoseconds
+  private final int maxSize;
+  private final Syncer syncer;
+
+  // The group that callers join, or null if the next caller is to start a new one. Guarded by this.
+  private Group open;
+
+  /**
+   * @param maxSize Maximum number of callers in a group.
+   */
+  GroupCommit(long interval, TimeUnit unit, int maxSize, Syncer syncer) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("group size must be positive, got " + maxSize);
+    }
+    this.interval = unit.toNanos(interval);
+    this.maxSize = maxSize;
+    this.syncer = syncer;
+  }
+
+  /**
+   * Returns when paths have been synced, along with those of other callers.
+   */
+  void sync(Collection<Path> paths) throws IOException {
+    Group group;
+    boolean leader;
+    synchronized (this) {
+      leader = open == null;
+      if (leader) {
+        open = new Group();
+      }
+      group = open;
+      group.paths.addAll(paths);
+      if (++group.size >= maxSize) {
+        open = null;
+        notifyAll(); // Wake the leader.
+      }
+    }
+    if (leader) {
+      lead(group);
+    }
+
+    try {
+      group.done.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while waiting for group commit");
+    } catch (ExecutionException e) {
+      Throwables.throwIfInstanceOf(e.getCause(), IOException.class);
+      Throwables.throwIfUnchecked(e.getCause());
+      throw new IOException(e.getCause());
+    }
+  }
+
+  private void lead(Group group) {
+    boolean interrupted = false;
+    synchronized (this) {
+      long deadline = System.nanoTime() + interval;
+      for (long left = interval; open == group && left > 0; left = deadline - System.nanoTime()) {
+        try {
+          NANOSECONDS.timedWait(this, left);
+        } catch (InterruptedException e) {
+          interrupted = true; // Sync what we have, so the others don't wait forever.
+          break;
+        }
+      }
+      if (open == group) {
+        open = null;
+      }
+    }
+
+    // Outside the lock, so that the next group can form meanwhile.
+    try {
+      for (Path path : group.paths) {
+        syncer.sync(path);
+      }
+      group.done.complete(null);
+    } catch (Throwable e) {
+      group.done.completeExceptionally(e);
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
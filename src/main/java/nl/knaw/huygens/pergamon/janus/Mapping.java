@@ -4,6 +4,7 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import nl.knaw.huygens.pergamon.janus.xml.XmlParser;
 import nu.xom.Document;
 import nu.xom.Element;
+import nu.xom.Elements;
 import nu.xom.Node;
 import nu.xom.Nodes;
 import nu.xom.ParsingException;
@@ -13,11 +14,22 @@ import org.hibernate.validator.constraints.NotEmpty;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
+
+import static javax.xml.stream.XMLStreamConstants.CDATA;
+import static javax.xml.stream.XMLStreamConstants.CHARACTERS;
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.SPACE;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
 
 /**
  * A Mapping represents an Elasticsearch mapping (schema).
@@ -72,10 +84,128 @@ public class Mapping {
     }
   }
 
+  /**
+   * Converts the body field's element when a Mapping is applied to a stream.
+   * <p>
+   * Called with the stream positioned at the element's start tag. Must leave the stream
+   * positioned at the matching end tag.
+   */
+  public interface BodyReader<T> {
+    T read(XMLStreamReader in) throws XMLStreamException;
+  }
+
+  /**
+   * An XPath expression of the form /a/b/c or /a/b/@c, which can be evaluated on a stream,
+   * or on a tree without going through an XPath engine.
+   */
+  static class SimplePath {
+    private static final String NAME = "[A-Za-z_][A-Za-z0-9_.-]*";
+    private static final Pattern STEP = Pattern.compile("@?(" + NAME + ":)?" + NAME);
+
+    // Element steps. "/" has none and refers to the root element.
+    final List<QName> steps;
+    // Attribute at the end of the path, or null.
+    final QName attribute;
+
+    private SimplePath(List<QName> steps, QName attribute) {
+      this.steps = steps;
+      this.attribute = attribute;
+    }
+
+    /**
+     * Returns the SimplePath for xpath, or null if xpath is not that simple.
+     */
+    static SimplePath parse(String xpath, XPathContext ctx) {
+      if (!xpath.startsWith("/")) {
+        return null;
+      }
+      List<QName> steps = new ArrayList<>();
+      QName attribute = null;
+      String[] parts = xpath.equals("/") ? new String[0] : xpath.substring(1).split("/", -1);
+      for (int i = 0; i < parts.length; i++) {
+        String part = parts[i];
+        boolean isAttribute = part.startsWith("@");
+        if (!STEP.matcher(part).matches() || isAttribute && i < parts.length - 1) {
+          return null;
+        }
+        QName name = qname(isAttribute ? part.substring(1) : part, ctx);
+        if (name == null) {
+          return null;
+        }
+        if (isAttribute) {
+          attribute = name;
+        } else {
+          steps.add(name);
+        }
+      }
+      if (steps.isEmpty() && attribute != null) {
+        return null; // /@a selects attributes of the document node, of which there are none.
+      }
+      return new SimplePath(steps, attribute);
+    }
+
+    private static QName qname(String name, XPathContext ctx) {
+      int colon = name.indexOf(':');
+      if (colon < 0) {
+        return new QName(name);
+      }
+      String uri = ctx.lookup(name.substring(0, colon));
+      return uri == null ? null : new QName(uri, name.substring(colon + 1));
+    }
+
+    // First node in document order that this path selects in doc, or null.
+    Node select(Document doc) {
+      Element root = doc.getRootElement();
+      if (steps.isEmpty()) {
+        return root;
+      }
+      return matches(root, steps.get(0)) ? select(root, 1) : null;
+    }
+
+    private Node select(Element elem, int step) {
+      if (step == steps.size()) {
+        return attribute == null ? elem : elem.getAttribute(attribute.getLocalPart(), attribute.getNamespaceURI());
+      }
+      QName name = steps.get(step);
+      Elements children = elem.getChildElements(name.getLocalPart(), name.getNamespaceURI());
+      for (int i = 0; i < children.size(); i++) {
+        Node node = select(children.get(i), step + 1);
+        if (node != null) {
+          return node;
+        }
+      }
+      return null;
+    }
+
+    private static boolean matches(Element elem, QName name) {
+      return elem.getLocalName().equals(name.getLocalPart()) && elem.getNamespaceURI().equals(name.getNamespaceURI());
+    }
+
+    // Whether path, the names of the currently open elements, leads to the element of this path.
+    boolean matches(List<QName> path) {
+      return steps.isEmpty() ? path.size() == 1 : steps.equals(path);
+    }
+
+    // Whether the element of this path contains that of other, or vice versa.
+    boolean overlaps(SimplePath other) {
+      return steps.isEmpty() || other.steps.isEmpty() || isPrefix(steps, other.steps) ||
+        isPrefix(other.steps, steps);
+    }
+
+    private static boolean isPrefix(List<QName> a, List<QName> b) {
+      return a.size() <= b.size() && a.equals(b.subList(0, a.size()));
+    }
+  }
+
   private final boolean strict;
   private final List<Field> fields;
   private final XPathContext xpathctx = new XPathContext();
 
+  // Each field's expression, compiled once. Null where a field needs the full XPath engine.
+  private final List<SimplePath> paths;
+  // Whether all fields can be evaluated in a single pass over a stream.
+  private final boolean streamable;
+
   // Elasticsearch mapping, in a json'able format.
   private final Map<String, Object> mapping;
 
@@ -123,18 +253,51 @@ public class Mapping {
       namespaces.forEach(ns -> xpathctx.addNamespace(ns.prefix, ns.url));
     }
 
+    paths = new ArrayList<>();
     fields.forEach(field -> {
       if (properties.containsKey(field.name)) {
         throw new IllegalArgumentException("duplicate field name " + field.name);
       }
 
-      // Validate XPath by trying it on a trivial document.
-      NULLDOC.query(field.xpath, xpathctx);
+      SimplePath path = SimplePath.parse(field.xpath, xpathctx);
+      if (path == null) {
+        // Validate XPath by trying it on a trivial document.
+        NULLDOC.query(field.xpath, xpathctx);
+      }
+      paths.add(path);
 
       Map<String, String> typeMap = new HashMap<>();
       typeMap.put("type", field.type);
       properties.put(field.name, typeMap);
     });
+
+    streamable = streamable(paths);
+  }
+
+  // Fields can be evaluated in a single streaming pass if their expressions are SimplePaths,
+  // the body is an element, and no other field is to be found inside the body or vice versa.
+  private static boolean streamable(List<SimplePath> paths) {
+    if (paths.contains(null)) {
+      return false;
+    }
+    SimplePath body = paths.get(0);
+    if (body.attribute != null) {
+      return false;
+    }
+    for (SimplePath path : paths.subList(1, paths.size())) {
+      if (path.attribute == null ? body.overlaps(path) : path.steps.size() > body.steps.size() &&
+        body.overlaps(path)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether this mapping can be applied to a stream, using {@link #apply(XMLStreamReader, BodyReader)}.
+   */
+  public boolean streamable() {
+    return streamable;
   }
 
   /*
@@ -146,37 +309,137 @@ public class Mapping {
    * - a Map that can be serialized to JSON and fed to Elasticsearch.
    */
   public Triple<String, Element, Map<String, String>> apply(Document doc) throws IOException, ParsingException {
-    Element root = doc.getRootElement();
-
     Element body;
-    try {
-      Node node = root.query(fields.get(0).xpath, xpathctx).get(0);
-      if (node instanceof Document) {
-        body = ((Document) node).getRootElement();
+    Node node = select(0, doc);
+    if (node == null) {
+      throw new IllegalArgumentException("no value for body field '" + fields.get(0).name + "'");
+    } else if (node instanceof Document) {
+      body = ((Document) node).getRootElement();
+    } else {
+      body = (Element) node;
+    }
+    Map<String, String> fieldValues = new HashMap<>();
+
+    for (int i = 1; i < fields.size(); i++) {
+      Field field = fields.get(i);
+      Node value = select(i, doc);
+      if (value == null) {
+        noValue(field);
       } else {
-        body = (Element) node;
+        fieldValues.put(field.name, value.getValue());
+      }
+    }
+    return Triple.of(fields.get(0).name, body, fieldValues);
+  }
+
+  // First node selected by the i'th field's expression, or null.
+  private Node select(int i, Document doc) {
+    SimplePath path = paths.get(i);
+    if (path != null) {
+      return path.select(doc);
+    }
+    Nodes nodes = doc.getRootElement().query(fields.get(i).xpath, xpathctx);
+    return nodes.size() == 0 ? null : nodes.get(0);
+  }
+
+  /*
+   * Apply mapping to a stream of XML, in a single pass and without building a tree.
+   * Only possible if streamable() returns true.
+   *
+   * Returns the same as apply(Document), except that the body element is converted
+   * by bodyReader when it is encountered.
+   */
+  public <T> Triple<String, T, Map<String, String>> apply(XMLStreamReader in, BodyReader<T> bodyReader)
+    throws XMLStreamException {
+    if (!streamable) {
+      throw new IllegalStateException("mapping cannot be applied to a stream");
+    }
+
+    T body = null;
+    boolean seenBody = false;
+    String[] values = new String[fields.size()];
+    // Text of elements whose value is being collected.
+    StringBuilder[] collecting = new StringBuilder[fields.size()];
+    List<QName> path = new ArrayList<>();
+
+    while (in.hasNext()) {
+      switch (in.next()) {
+        case START_ELEMENT:
+          path.add(in.getName());
+          for (int i = 1; i < fields.size(); i++) {
+            SimplePath field = paths.get(i);
+            if (values[i] != null || collecting[i] != null || !field.matches(path)) {
+              continue;
+            }
+            if (field.attribute == null) {
+              collecting[i] = new StringBuilder();
+            } else {
+              values[i] = attributeValue(in, field.attribute);
+            }
+          }
+          if (!seenBody && paths.get(0).matches(path)) {
+            body = bodyReader.read(in);
+            seenBody = true;
+            path.remove(path.size() - 1);
+          }
+          break;
+
+        case END_ELEMENT:
+          for (int i = 1; i < fields.size(); i++) {
+            if (collecting[i] != null && paths.get(i).matches(path)) {
+              values[i] = collecting[i].toString();
+              collecting[i] = null;
+            }
+          }
+          path.remove(path.size() - 1);
+          break;
+
+        case CHARACTERS:
+        case CDATA:
+        case SPACE:
+          for (StringBuilder sb : collecting) {
+            if (sb != null) {
+              sb.append(in.getText());
+            }
+          }
+          break;
+
+        default:
       }
-    } catch (IndexOutOfBoundsException e) {
+    }
+
+    if (!seenBody) {
       throw new IllegalArgumentException("no value for body field '" + fields.get(0).name + "'");
     }
     Map<String, String> fieldValues = new HashMap<>();
-
-    for (Field field : fields.subList(1, fields.size())) {
-      Nodes values = root.query(field.xpath, xpathctx);
-      if (values.size() < 1) {
-        String msg = "no value for field " + field.name;
-        if (strict) {
-          throw new IllegalArgumentException(msg);
-        } else {
-          logger.warn(msg);
-        }
+    for (int i = 1; i < fields.size(); i++) {
+      if (values[i] == null) {
+        noValue(fields.get(i));
       } else {
-        fieldValues.put(field.name, values.get(0).getValue());
+        fieldValues.put(fields.get(i).name, values[i]);
       }
     }
     return Triple.of(fields.get(0).name, body, fieldValues);
   }
 
+  private static String attributeValue(XMLStreamReader in, QName name) {
+    for (int i = 0; i < in.getAttributeCount(); i++) {
+      if (name.equals(in.getAttributeName(i))) {
+        return in.getAttributeValue(i);
+      }
+    }
+    return null;
+  }
+
+  private void noValue(Field field) {
+    String msg = "no value for field " + field.name;
+    if (strict) {
+      throw new IllegalArgumentException(msg);
+    } else {
+      logger.warn(msg);
+    }
+  }
+
   /**
    * Mapping as a Map, which serializes as the JSON that Elasticsearch expects.
    */
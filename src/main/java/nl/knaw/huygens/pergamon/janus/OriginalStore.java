@@ -1,21 +1,61 @@
 package nl.knaw.huygens.pergamon.janus;
 
-import java.io.BufferedWriter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Striped;
+import io.dropwizard.util.Duration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static nl.knaw.huygens.pergamon.janus.Identifier.requireValid;
 
 /**
@@ -26,14 +66,124 @@ import static nl.knaw.huygens.pergamon.janus.Identifier.requireValid;
  * SHA-256, in lowercase hexadecimal (two characters each).
  * <p>
  * Clients should obtain Writers to update files in the hierarchy.
- * These (when used in try-with-resources blocks) ensure that parts of the
- * hierarchy are properly locked.
+ * These (when used in try-with-resources blocks) ensure that the files
+ * are properly locked.
+ * <p>
+ * Locks are per id, striped over a fixed number of read-write locks that are only
+ * allocated when used. Ids that share a stripe serialize, so the number of stripes
+ * should be large compared to the number of concurrent requests.
+ * <p>
+ * Originals may be stored gzip-compressed. Compressed files are recognized by the gzip
+ * magic number, which cannot start an XML, JSON or UTF-8 text document, so stores
+ * may contain a mix of compressed and uncompressed files. Reading decompresses.
+ * <p>
+ * Where the file system supports hard links, contents are stored once, as blobs named by
+ * the SHA-256 of the original: $dir/blobs/$sha0/$sha1/$sha. The file of each id is a hard link
+ * to its blob, so readers needn't know about blobs, the link count tells which blobs are still
+ * in use and replacing an original is an atomic swap of links. Files written without blobs
+ * (before they were introduced, or when linking is not possible) are read just the same.
+ * <p>
+ * How soon writes reach stable storage is set by the {@link Durability} mode.
  */
 public class OriginalStore {
+  /**
+   * How new originals are stored.
+   */
+  public enum Compression {
+    NONE,
+    GZIP
+  }
+
+  /**
+   * When committed writes reach stable storage.
+   */
+  public enum Durability {
+    /**
+     * Whenever the operating system gets round to it.
+     */
+    NONE,
+
+    /**
+     * Before commit returns: files and directories are fsynced by each write.
+     */
+    FSYNC,
+
+    /**
+     * Before commit returns, but concurrent writes share fsyncs (see {@link GroupCommit}).
+     * A write waits up to groupCommitInterval for others to join it.
+     */
+    GROUP
+  }
+
+  static class Config {
+    // How long a request waits for a lock on an original before giving up.
+    @JsonProperty
+    @NotNull
+    Duration lockTimeout = Duration.milliseconds(200);
+
+    // Number of locks that ids are striped over. 0 means a default proportional to the number of processors.
+    @JsonProperty
+    @Min(0)
+    int lockStripes = 0;
+
+    @JsonProperty
+    @NotNull
+    Compression compression = Compression.NONE;
+
+    // Deflate level, 1 (fastest) to 9 (smallest), or -1 for the default (6).
+    @JsonProperty
+    @Min(-1)
+    @Max(9)
+    int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    @JsonProperty
+    @NotNull
+    Durability durability = Durability.NONE;
+
+    // Bounds on the groups of the GROUP durability mode: how long a group waits for writes to join,
+    // and the maximum number of writes in it.
+    @JsonProperty
+    @NotNull
+    Duration groupCommitInterval = Duration.milliseconds(10);
+
+    @JsonProperty
+    @Min(1)
+    int groupCommitSize = 64;
+  }
+
+  // First two bytes of a gzip file.
+  private static final int GZIP_MAGIC0 = 0x1f;
+  private static final int GZIP_MAGIC1 = 0x8b;
+
+  // Default number of lock stripes per available processor.
+  private static final int STRIPES_PER_PROCESSOR = 256;
+
+  // Two-digit lowercase hexadecimal representations of bytes.
+  private static final String[] HEX = new String[256];
+
+  static {
+    for (int i = 0; i < HEX.length; i++) {
+      HEX[i] = String.format("%02x", i);
+    }
+  }
+
+  private static final Logger LOG = LoggerFactory.getLogger(OriginalStore.class);
+
   private final Path dir;
-  // one lock per $hash0/$hash1
-  private final ReadWriteLock locks[] = new ReentrantReadWriteLock[256 * 256];
+  // Directory of content-addressed blobs, or null if the file system doesn't do hard links.
+  private final Path blobs;
+  // Directory $dir/$hash0/$hash1 for each hash, filled in on first use.
+  private final Path[] parents = new Path[256 * 256];
+  private final Striped<ReadWriteLock> locks;
   private final long timeout;
+  private final Compression compression;
+  private final int compressionLevel;
+  private final Durability durability;
+  private final GroupCommit groupCommit;
+
+  // Time spent waiting for locks, and the number of times we gave up.
+  private final Timer lockWait = new Timer();
+  private final Meter lockTimeouts = new Meter();
 
   /**
    * @param dir     Top-level directory.
@@ -41,16 +191,154 @@ public class OriginalStore {
    * @throws IOException
    */
   public OriginalStore(Path dir, long timeout) throws IOException {
+    this(dir, withTimeout(timeout));
+  }
+
+  private static Config withTimeout(long timeout) {
+    Config config = new Config();
+    config.lockTimeout = Duration.milliseconds(timeout);
+    return config;
+  }
+
+  /**
+   * @param dir Top-level directory.
+   * @throws IOException
+   */
+  OriginalStore(Path dir, Config config) throws IOException {
+    int compressionLevel = config.compressionLevel;
+    if (compressionLevel != Deflater.DEFAULT_COMPRESSION &&
+      (compressionLevel < Deflater.BEST_SPEED || compressionLevel > Deflater.BEST_COMPRESSION)) {
+      throw new IllegalArgumentException("invalid compression level: " + compressionLevel);
+    }
+    int stripes = config.lockStripes;
+    if (stripes < 0) {
+      throw new IllegalArgumentException("negative number of lock stripes: " + stripes);
+    }
+    if (stripes == 0) {
+      stripes = STRIPES_PER_PROCESSOR * Runtime.getRuntime().availableProcessors();
+    }
     try {
       Files.createDirectory(dir);
     } catch (FileAlreadyExistsException e) {
     }
     this.dir = dir;
-    this.timeout = timeout;
+    this.blobs = blobDir(dir);
+    this.timeout = config.lockTimeout.toMilliseconds();
+    this.locks = Striped.lazyWeakReadWriteLock(stripes);
+    this.compression = config.compression;
+    this.compressionLevel = compressionLevel;
+    this.durability = config.durability;
+    this.groupCommit = durability != Durability.GROUP ? null :
+      new GroupCommit(config.groupCommitInterval.toNanoseconds(), NANOSECONDS, config.groupCommitSize,
+        OriginalStore::fsync);
+  }
+
+  // Makes paths durable, as the durability mode requires.
+  private void sync(Collection<Path> paths) throws IOException {
+    switch (durability) {
+      case NONE:
+        break;
+      case FSYNC:
+        for (Path path : paths) {
+          fsync(path);
+        }
+        break;
+      case GROUP:
+        groupCommit.sync(paths);
+        break;
+    }
+  }
+
+  // Flushes the file or directory at path to stable storage.
+  static void fsync(Path path) throws IOException {
+    boolean directory = Files.isDirectory(path);
+    try (FileChannel channel = FileChannel.open(path, READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      if (!directory) {
+        throw e;
+      }
+      // Some platforms can't open or sync directories; renames are as durable as they get there.
+    }
+  }
+
+  // Creates the blob directory, if hard links work in dir; returns null if they don't.
+  private static Path blobDir(Path dir) throws IOException {
+    Path blobs = dir.resolve("blobs");
+    mkdir(blobs);
+    Path probe = Files.createTempFile(blobs, ".probe_", "");
+    Path link = blobs.resolve(probe.getFileName() + ".link");
+    try {
+      Files.createLink(link, probe);
+      Files.getAttribute(link, "unix:nlink");
+      return blobs;
+    } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+      LOG.warn("No hard links in {}, storing originals without deduplication: {}", dir, e.toString());
+      return null;
+    } finally {
+      Files.deleteIfExists(link);
+      Files.delete(probe);
+    }
+  }
 
-    for (int i = 0; i < locks.length; i++) {
-      locks[i] = new ReentrantReadWriteLock();
+  /**
+   * Deletes blobs that no original links to any more. Blobs younger than minAge (milliseconds)
+   * are skipped, since they may be about to be linked.
+   *
+   * @return The number of blobs deleted.
+   */
+  public int collectGarbage(long minAge) throws IOException {
+    if (blobs == null) {
+      return 0;
+    }
+    long cutoff = System.currentTimeMillis() - minAge;
+    int deleted = 0;
+    try (Stream<Path> files = Files.walk(blobs, 3)) {
+      for (Path blob : (Iterable<Path>) files::iterator) {
+        if (blob.getFileName().toString().startsWith(".") || !Files.isRegularFile(blob)) {
+          continue;
+        }
+        // A link made between this check and the delete keeps the content alive;
+        // only the blob's name goes, so that content is no longer deduplicated.
+        if (links(blob) == 1 && Files.getLastModifiedTime(blob).toMillis() < cutoff &&
+          Files.deleteIfExists(blob)) {
+          deleted++;
+        }
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return deleted;
+  }
+
+  private static int links(Path path) throws IOException {
+    return (Integer) Files.getAttribute(path, "unix:nlink");
+  }
+
+  /**
+   * Registers the lock wait times and timeouts in registry.
+   */
+  public void registerMetrics(MetricRegistry registry) {
+    registry.register(MetricRegistry.name(OriginalStore.class, "lockWait"), lockWait);
+    registry.register(MetricRegistry.name(OriginalStore.class, "lockTimeouts"), lockTimeouts);
+  }
+
+  // Acquires the read or write lock of id, recording how long that took.
+  private Lock lock(ReadWriteLock rw, String id, boolean write) throws TimeoutException {
+    Lock lock = write ? rw.writeLock() : rw.readLock();
+    boolean locked = false;
+    long start = System.nanoTime();
+    try {
+      locked = lock.tryLock(timeout, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      // Proceed to throw TimeoutException.
     }
+    lockWait.update(System.nanoTime() - start, NANOSECONDS);
+    if (!locked) {
+      lockTimeouts.mark();
+      throw new TimeoutException("could not get lock for " + id);
+    }
+    return lock;
   }
 
   public byte[] get(String id) throws IOException, TimeoutException {
@@ -59,59 +347,165 @@ public class OriginalStore {
     }
   }
 
+  /**
+   * Opens the original of id for reading.
+   * <p>
+   * The lock is only held while opening. Since originals are replaced by atomic renames, the returned
+   * channel keeps reading the version that was opened, even if it is replaced or deleted in the meantime.
+   */
+  public Original open(String id) throws IOException, TimeoutException {
+    try (LockedReader rd = new LockedReader(id)) {
+      BasicFileAttributes attrs = Files.readAttributes(rd.path, BasicFileAttributes.class);
+      FileChannel channel = FileChannel.open(rd.path, READ);
+      try {
+        return new Original(channel, attrs, blobs != null);
+      } catch (Throwable e) {
+        channel.close();
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * An original that has been opened for reading, with the attributes of the opened version.
+   */
+  public static class Original implements Closeable {
+    // The file, as stored. If gzipped, size is the compressed size.
+    public final FileChannel channel;
+    public final long size;
+    public final boolean gzipped;
+    // When this version was written, or null if the store links originals to blobs. A blob is shared
+    // by every id with the same content, and its modification time is when that content was first
+    // stored, which may be before earlier versions of this id.
+    @Nullable
+    public final FileTime lastModified;
+    private final FileTime fileModified;
+    private final Object fileKey;
+
+    private Original(FileChannel channel, BasicFileAttributes attrs, boolean shared) throws IOException {
+      this.channel = channel;
+      this.size = attrs.size();
+      this.fileModified = attrs.lastModifiedTime();
+      this.fileKey = attrs.fileKey();
+      this.lastModified = shared ? null : fileModified;
+
+      ByteBuffer magic = ByteBuffer.allocate(2);
+      channel.read(magic, 0);
+      gzipped = isGzip(magic.array(), magic.position());
+    }
+
+    /**
+     * Identifies this version of the original, as stored. Every write replaces the file, either
+     * by a new one or by a link to a blob, and blobs are never modified, so the file (its key,
+     * where the platform has them), size and modification time together identify the content.
+     * Writing content that an id had before may bring back its old ETag, which is correct.
+     */
+    public String etag() {
+      String tag = Long.toHexString(size) + "-" + Long.toHexString(fileModified.to(NANOSECONDS));
+      return fileKey == null ? tag : tag + "-" + Integer.toHexString(fileKey.hashCode());
+    }
+
+    /**
+     * Reads the original from the start, decompressing it if needed.
+     * Closing the stream leaves the channel open, so content may be read more than once.
+     */
+    public InputStream content() throws IOException {
+      InputStream in = new ChannelStream(channel);
+      return gzipped ? new GZIPInputStream(in) : in;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  // Reads a channel from the start. Reads are positional, so they don't depend on or move the position
+  // of the channel, and closing the stream leaves the channel open.
+  private static class ChannelStream extends InputStream {
+    private final FileChannel channel;
+    private long pos = 0;
+
+    ChannelStream(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      int n = channel.read(ByteBuffer.wrap(b, off, len), pos);
+      if (n > 0) {
+        pos += n;
+      }
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = Math.max(0, Math.min(n, channel.size() - pos));
+      pos += skipped;
+      return skipped;
+    }
+  }
+
   private class LockedReader implements AutoCloseable {
     final int hash;
     final String id;
     final Path path;
+    // The stripe is only weakly referenced by locks, so we must hold on to it.
+    private final ReadWriteLock rw;
+    private final Lock lock;
 
     private LockedReader(String id) throws TimeoutException {
       requireValid(id);
       this.hash = hash(id);
       this.id = id;
       path = getPath(id, hash);
-
-      try {
-        if (locks[hash].readLock().tryLock(timeout, TimeUnit.MILLISECONDS)) {
-          return;
-        }
-      } catch (InterruptedException e) {
-        // Proceed to throw TimeoutException.
-      }
-      throw new TimeoutException("could not get lock for " + getParent(hash));
+      rw = locks.get(id);
+      lock = lock(rw, id, false);
     }
 
     @Override
     public void close() {
-      locks[hash].readLock().unlock();
+      lock.unlock();
     }
 
     byte[] get() throws IOException, TimeoutException {
-      return Files.readAllBytes(path);
+      return decode(Files.readAllBytes(path));
     }
   }
 
   public abstract class WriteOp implements AutoCloseable {
     protected final int hash;
     protected Path path;
-
-    private WriteOp(String id) throws TimeoutException {
+    // See LockedReader.
+    private final ReadWriteLock rw;
+    private final Lock lock;
+    // The batch that this op defers its syncs to, if any.
+    private final WriteBatch batch;
+    // Directories whose entries this op has changed.
+    final Set<Path> dirty = new LinkedHashSet<>();
+
+    private WriteOp(String id, WriteBatch batch) throws TimeoutException {
       requireValid(id);
       this.hash = hash(id);
+      this.batch = batch;
       path = getPath(id, hash);
-
-      try {
-        if (locks[hash].writeLock().tryLock(timeout, TimeUnit.MILLISECONDS)) {
-          return;
-        }
-      } catch (InterruptedException e) {
-        // Throw TimeoutException below.
-      }
-      throw new TimeoutException("could not get lock for " + getParent(hash));
+      rw = locks.get(id);
+      lock = lock(rw, id, true);
     }
 
     @Override
     public void close() throws IOException {
-      locks[hash].writeLock().unlock();
+      lock.unlock();
     }
 
     /**
@@ -127,31 +521,140 @@ public class OriginalStore {
      * queries need to be performed.
      */
     public abstract boolean noop() throws IOException;
+
+    // Creates a temporary file next to path, to be moved into place on commit.
+    Path createTempFile() throws IOException {
+      Path dir = getParent(hash);
+      mkdirs(dir);
+      return Files.createTempFile(dir, ".tmp_", "");
+    }
+
+    // Creates dir and its parent, if needed, noting the directories that change.
+    void mkdirs(Path dir) throws IOException {
+      if (mkdir(dir.getParent())) {
+        dirty.add(dir.getParent().getParent());
+      }
+      if (mkdir(dir)) {
+        dirty.add(dir.getParent());
+      }
+    }
+
+    // Makes the changes of this op durable, or leaves that to its batch. content is the file
+    // that this op wrote, or null.
+    void finish(Path content) throws IOException {
+      if (batch == null) {
+        sync(dirty);
+      } else {
+        if (content != null) {
+          batch.add(Collections.singleton(content));
+        }
+        batch.add(dirty);
+      }
+      dirty.clear();
+    }
+
+    /*
+     * Puts tmp, a complete file with the content whose SHA-256 is digest, in place at path.
+     * With blobs, path becomes a link to the blob of digest, which is made from tmp
+     * if there is no such blob yet. Otherwise, tmp is discarded.
+     */
+    void install(Path tmp, byte[] digest) throws IOException {
+      dirty.add(path.getParent());
+      Path blob = blobs == null ? null : blobPath(digest);
+      if (blob != null) {
+        try {
+          link(blob);
+          Files.delete(tmp);
+          finish(null);
+          return;
+        } catch (NoSuchFileException e) {
+          // New content, or its blob was just collected.
+        }
+      }
+
+      // Unless deferred, the content is made durable before it gets its name, so that a crash
+      // can't leave an empty file in place of the previous version.
+      if (batch == null) {
+        sync(Collections.singleton(tmp));
+      }
+      if (blob == null) {
+        Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        finish(path);
+        return;
+      }
+      mkdirs(blob.getParent());
+      Files.move(tmp, blob, ATOMIC_MOVE, REPLACE_EXISTING);
+      dirty.add(blob.getParent());
+      link(blob);
+      finish(blob);
+    }
+
+    // Atomically replaces path by a link to blob.
+    private void link(Path blob) throws IOException {
+      Path link = path.resolveSibling(".tmp_link_" + Long.toHexString(ThreadLocalRandom.current().nextLong()));
+      Files.createLink(link, blob);
+      try {
+        Files.move(link, path, ATOMIC_MOVE, REPLACE_EXISTING);
+      } catch (Throwable e) {
+        Files.deleteIfExists(link);
+        throw e;
+      }
+    }
+
+    /*
+     * Whether path links to the blob of digest. Returns null if that can't be decided without
+     * comparing contents, because path isn't a link to a blob.
+     *
+     * Since blobs are named by their content, a path that links to another blob has other content.
+     */
+    Boolean linksTo(byte[] digest) throws IOException {
+      if (blobs == null || links(path) < 2) {
+        return null;
+      }
+      Path blob = blobPath(digest);
+      return Files.exists(blob) && Files.isSameFile(path, blob);
+    }
+
+    // Whether path exists and has content.
+    boolean hasContent(byte[] content) throws IOException {
+      try {
+        Boolean same = linksTo(sha256().digest(content));
+        return same != null ? same : Arrays.equals(decode(Files.readAllBytes(path)), content);
+      } catch (NoSuchFileException e) {
+        return false;
+      }
+    }
   }
 
   private class Delete extends WriteOp {
-    private Delete(String id) throws TimeoutException {
-      super(id);
+    // If not null, only an original with this content is deleted.
+    private final byte[] content;
+
+    private Delete(String id, byte[] content) throws TimeoutException {
+      super(id, null);
+      this.content = content;
     }
 
     @Override
     public void commit() throws IOException {
       Files.delete(path);
+      dirty.add(path.getParent());
       path = null; // guard against multiple commit
+      finish(null);
     }
 
     @Override
-    public boolean noop() {
-      return !Files.exists(path);
+    public boolean noop() throws IOException {
+      return content == null ? !Files.exists(path) : !hasContent(content);
     }
   }
 
   private class Put extends WriteOp {
-    private final String content;
+    private final byte[] content;
     private final boolean overwrite;
 
-    private Put(String id, String content, boolean overwrite) throws TimeoutException {
-      super(id);
+    private Put(String id, byte[] content, boolean overwrite, WriteBatch batch) throws TimeoutException {
+      super(id, batch);
       this.content = content;
       this.overwrite = overwrite;
     }
@@ -162,69 +665,338 @@ public class OriginalStore {
         throw new FileAlreadyExistsException(path.toString());
       }
 
-      Path dir = getParent(hash);
-      mkdir(dir.getParent());
-      mkdir(dir);
-      Path tmp = Files.createTempFile(dir, ".tmp_", "");
+      Path tmp = createTempFile();
 
-      try (BufferedWriter out = Files.newBufferedWriter(tmp)) {
-        out.write(content);
-        Files.move(tmp, path, ATOMIC_MOVE, REPLACE_EXISTING);
+      try {
+        try (OutputStream out = encode(Files.newOutputStream(tmp))) {
+          out.write(content);
+        }
+        install(tmp, sha256().digest(content));
       } catch (Throwable e) {
-        Files.delete(tmp);
+        Files.deleteIfExists(tmp);
         throw e;
       }
     }
 
     @Override
     public boolean noop() throws IOException {
+      return overwrite && hasContent(content);
+    }
+  }
+
+  /**
+   * A put whose content is read from a stream.
+   * <p>
+   * The content is copied to a temporary file while the client reads it through {@link #input()},
+   * e.g., to parse it, so it is never held in memory as a whole.
+   */
+  public class Upload extends WriteOp {
+    private final boolean overwrite;
+    private final Path tmp;
+    private final OutputStream copy;
+    private final InputStream input;
+    private final MessageDigest sha = sha256();
+    private byte[] digest;
+
+    private Upload(String id, InputStream content, boolean overwrite) throws TimeoutException, IOException {
+      super(id, null);
+      this.overwrite = overwrite;
       try {
-        return overwrite && new String(Files.readAllBytes(path)).equals(content);
+        tmp = createTempFile();
+        copy = encode(Files.newOutputStream(tmp));
+      } catch (IOException e) {
+        super.close();
+        throw e;
+      }
+      input = new Tee(content);
+    }
+
+    /**
+     * The content. Closing this stream does not close the stream it was read from.
+     */
+    public InputStream input() {
+      return input;
+    }
+
+    // Copies whatever the client didn't read, and closes the temporary file.
+    private void finishCopy() throws IOException {
+      if (digest == null) {
+        byte[] buf = new byte[8192];
+        while (input.read(buf) >= 0) {
+          // Tee does the work.
+        }
+        copy.close();
+        digest = sha.digest();
+      }
+    }
+
+    @Override
+    public void commit() throws IOException {
+      finishCopy();
+      if (!overwrite && Files.exists(path)) {
+        throw new FileAlreadyExistsException(path.toString());
+      }
+      install(tmp, digest);
+    }
+
+    @Override
+    public boolean noop() throws IOException {
+      finishCopy();
+      if (!overwrite) {
+        return false;
+      }
+      try {
+        Boolean same = linksTo(digest);
+        return same != null ? same : sameContent(tmp, path);
       } catch (NoSuchFileException e) {
         return false;
       }
     }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        copy.close();
+        Files.deleteIfExists(tmp);
+      } finally {
+        super.close();
+      }
+    }
+
+    // Copies everything read from in to copy.
+    private class Tee extends FilterInputStream {
+      Tee(InputStream in) {
+        super(in);
+      }
+
+      @Override
+      public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+          copy.write(b);
+          sha.update((byte) b);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+          copy.write(b, off, n);
+          sha.update(b, off, n);
+        }
+        return n;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        byte[] buf = new byte[(int) Math.min(n, 8192)];
+        int read = read(buf, 0, buf.length);
+        return Math.max(read, 0);
+      }
+
+      @Override
+      public boolean markSupported() {
+        return false;
+      }
+
+      @Override
+      public void close() {
+      }
+    }
   }
 
   public WriteOp delete(String id) throws TimeoutException {
-    return new Delete(id);
+    return new Delete(id, null);
+  }
+
+  /**
+   * Like {@link #delete(String)}, but only if the original has the given content: the op is a noop otherwise.
+   */
+  public WriteOp delete(String id, byte[] content) throws TimeoutException {
+    return new Delete(id, content);
   }
 
   public WriteOp put(String id, String content) throws TimeoutException {
-    return new Put(id, content, false);
+    return put(id, content.getBytes(UTF_8));
+  }
+
+  public WriteOp put(String id, byte[] content) throws TimeoutException {
+    return new Put(id, content, false, null);
+  }
+
+  /**
+   * Like {@link #put(String, byte[])}, but leaves making the write durable to batch.
+   */
+  public WriteOp put(String id, byte[] content, WriteBatch batch) throws TimeoutException {
+    return new Put(id, content, false, batch);
   }
 
   public WriteOp replace(String id, String content) throws TimeoutException {
-    return new Put(id, content, true);
+    return new Put(id, content.getBytes(UTF_8), true, null);
+  }
+
+  /**
+   * Starts a batch of writes that are made durable together.
+   */
+  public WriteBatch batch() {
+    return new WriteBatch();
+  }
+
+  /**
+   * Writes whose fsyncs are deferred until {@link #sync()}, which does them once for the whole batch.
+   * <p>
+   * Writes in a batch are visible as soon as they are committed, but they are only durable when sync
+   * returns; after a crash before that, their files may be empty. Batches are therefore only used
+   * for new originals (puts), never to replace existing ones.
+   */
+  public class WriteBatch {
+    private final Set<Path> pending = new LinkedHashSet<>();
+
+    private WriteBatch() {
+    }
+
+    private synchronized void add(Collection<Path> paths) {
+      pending.addAll(paths);
+    }
+
+    /**
+     * Makes the writes committed so far durable, as the durability mode requires.
+     */
+    public void sync() throws IOException {
+      List<Path> paths;
+      synchronized (this) {
+        paths = new ArrayList<>(pending);
+        pending.clear();
+      }
+      if (durability != Durability.NONE) {
+        for (Path path : paths) {
+          fsync(path);
+        }
+      }
+    }
   }
 
-  private void mkdir(Path dir) throws IOException {
+  public Upload replace(String id, InputStream content) throws TimeoutException, IOException {
+    return new Upload(id, content, true);
+  }
+
+  // Stream that writes to out in the configured format.
+  private OutputStream encode(OutputStream out) throws IOException {
+    if (compression == Compression.NONE) {
+      return out;
+    }
+    return new GZIPOutputStream(out, BUFFER_SIZE) {
+      {
+        def.setLevel(compressionLevel);
+      }
+    };
+  }
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private static boolean isGzip(byte[] content, int length) {
+    return length >= 2 && (content[0] & 0xFF) == GZIP_MAGIC0 && (content[1] & 0xFF) == GZIP_MAGIC1;
+  }
+
+  // Decompresses content if it is gzipped.
+  static byte[] decode(byte[] content) throws IOException {
+    if (!isGzip(content, content.length)) {
+      return content;
+    }
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(content), BUFFER_SIZE)) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  // Opens path for reading, decompressing if needed.
+  private static InputStream read(Path path) throws IOException {
+    PushbackInputStream in = new PushbackInputStream(Files.newInputStream(path), 2);
+    try {
+      byte[] magic = new byte[2];
+      int n = ByteStreams.read(in, magic, 0, magic.length);
+      in.unread(magic, 0, n);
+      return isGzip(magic, n) ? new GZIPInputStream(in, BUFFER_SIZE) : new BufferedInputStream(in, BUFFER_SIZE);
+    } catch (Throwable e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  // Whether files a and b hold the same original, regardless of how they are stored.
+  // Compares block by block, so neither file is held in memory.
+  private static boolean sameContent(Path a, Path b) throws IOException {
+    try (InputStream x = read(a); InputStream y = read(b)) {
+      byte[] bx = new byte[BUFFER_SIZE];
+      byte[] by = new byte[BUFFER_SIZE];
+      while (true) {
+        int n = ByteStreams.read(x, bx, 0, BUFFER_SIZE);
+        if (ByteStreams.read(y, by, 0, BUFFER_SIZE) != n) {
+          return false;
+        }
+        for (int i = 0; i < n; i++) {
+          if (bx[i] != by[i]) {
+            return false;
+          }
+        }
+        if (n < BUFFER_SIZE) {
+          return true;
+        }
+      }
+    }
+  }
+
+  // Returns whether dir was created.
+  private static boolean mkdir(Path dir) throws IOException {
     try {
       Files.createDirectory(dir);
+      return true;
     } catch (FileAlreadyExistsException e) {
       // No problem
+      return false;
     }
   }
 
   private Path getParent(int h) {
-    return dir.resolve(String.format("%02x/%02x", (h & 0xFF00) >>> 8, h & 0xFF));
+    // Paths are immutable, so a racing thread at worst computes the same one again.
+    Path parent = parents[h];
+    if (parent == null) {
+      parent = dir.resolve(HEX[h >>> 8]).resolve(HEX[h & 0xFF]);
+      parents[h] = parent;
+    }
+    return parent;
   }
 
   Path getPath(String id, int h) {
     return getParent(h).resolve(id);
   }
 
-  // First two bytes of SHA-256 of id.
-  static int hash(String id) {
+  private Path blobPath(byte[] digest) {
+    StringBuilder name = new StringBuilder(2 * digest.length);
+    for (byte b : digest) {
+      name.append(HEX[b & 0xFF]);
+    }
+    return blobs.resolve(HEX[digest[0] & 0xFF]).resolve(HEX[digest[1] & 0xFF]).resolve(name.toString());
+  }
+
+  private static MessageDigest sha256() {
     try {
-      MessageDigest sha = MessageDigest.getInstance("SHA-256");
-      sha.update(id.getBytes("UTF-8"));
-      byte[] h = sha.digest();
-      int h0 = (int) h[0] & 0xFF;
-      int h1 = (int) h[1] & 0xFF;
-      return (h0 << 8) | h1;
-    } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
       throw new RuntimeException(e);
     }
   }
+
+  // MessageDigest.getInstance looks up the algorithm among the security providers every time.
+  private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(OriginalStore::sha256);
+
+  // First two bytes of SHA-256 of id.
+  static int hash(String id) {
+    MessageDigest sha = SHA256.get();
+    byte[] h = sha.digest(id.getBytes(UTF_8)); // digest resets sha
+    int h0 = (int) h[0] & 0xFF;
+    int h1 = (int) h[1] & 0xFF;
+    return (h0 << 8) | h1;
+  }
 }
@@ -8,6 +8,8 @@ import io.dropwizard.client.JerseyClientConfiguration;
 import io.dropwizard.forms.MultiPartBundle;
 import io.dropwizard.setup.Bootstrap;
 import io.dropwizard.setup.Environment;
+import io.dropwizard.util.Duration;
+import io.dropwizard.util.Size;
 import io.federecio.dropwizard.swagger.SwaggerBundle;
 import io.federecio.dropwizard.swagger.SwaggerBundleConfiguration;
 import io.swagger.annotations.Contact;
@@ -18,6 +20,7 @@ import nl.knaw.huygens.pergamon.janus.docsets.InMemoryDocSetStore;
 import nl.knaw.huygens.pergamon.janus.graphql.GraphQLResource;
 import nl.knaw.huygens.pergamon.janus.healthchecks.TextModHealthCheck;
 import nl.knaw.huygens.pergamon.janus.logging.RequestLoggingFilter;
+import nl.knaw.huygens.pergamon.janus.xml.AnnotationIds;
 import org.glassfish.jersey.logging.LoggingFeature;
 import org.hibernate.validator.constraints.NotEmpty;
 import org.slf4j.Logger;
@@ -25,6 +28,7 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.core.MediaType;
@@ -36,6 +40,8 @@ import java.nio.file.Paths;
 import java.util.List;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import static io.swagger.annotations.SwaggerDefinition.Scheme.HTTP;
@@ -75,11 +81,18 @@ public class Server extends Application<Server.Config> {
     @NotNull
     DocSetsResource.Config documentSets;
 
+    @Valid
+    @NotNull
+    @JsonProperty
+    DocumentsResource.Config documents = new DocumentsResource.Config();
+
     @Valid
     @NotNull
     @JsonProperty
     private JerseyClientConfiguration jerseyClient = new JerseyClientConfiguration();
 
+    @Valid
+    @NotNull
     @JsonProperty("elasticsearch")
     private ESConfig es;
 
@@ -90,9 +103,20 @@ public class Server extends Application<Server.Config> {
     @NotEmpty
     String textModUri;
 
-    @JsonProperty
+    @Valid
     @NotNull
+    @JsonProperty
     private Storage storage;
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    private BulkIngest.Config bulkIngest = new BulkIngest.Config();
+
+    @Valid
+    @NotNull
+    @JsonProperty
+    private GraphQLResource.Config graphql = new GraphQLResource.Config();
   }
 
   static class ESConfig {
@@ -113,6 +137,19 @@ public class Server extends Application<Server.Config> {
 
     @JsonProperty
     private List<Mapping.Namespace> namespaces;
+
+    @JsonProperty
+    @NotNull
+    private AnnotationIds annotationIds = AnnotationIds.UUID;
+
+    @JsonProperty
+    @NotNull
+    private Size annotationCacheSize = Size.megabytes(64);
+
+    // Number of threads that process the responses to asynchronous Elasticsearch requests.
+    @JsonProperty
+    @Min(1)
+    private int callbackThreads = 8;
   }
 
   static class ServiceConfig {
@@ -131,10 +168,17 @@ public class Server extends Application<Server.Config> {
     }
   }
 
-  static class Storage {
+  // Settings of the OriginalStore are inherited, so they go in the same section.
+  static class Storage extends OriginalStore.Config {
     @JsonProperty
     @NotEmpty
     private String directory;
+
+    // How often to delete the content of originals that have been replaced or deleted.
+    // Content written less than this long ago is kept, as it may be about to be linked to.
+    @JsonProperty
+    @NotNull
+    private Duration blobCollectionInterval = Duration.hours(1);
   }
 
   public static void main(String[] args) throws Exception {
@@ -167,15 +211,19 @@ public class Server extends Application<Server.Config> {
 
     environment.jersey().register(new SandboxResource());
 
-    final ElasticBackend backend = createBackend(config);
+    final OriginalStore originals = createOriginalStore(config, environment);
+    final ElasticBackend backend = createBackend(config, environment, originals);
     environment.jersey().register(new AnnotationsResource(backend));
-    environment.jersey().register(new GraphQLResource(backend));
+    GraphQLResource graphql = createGraphQLResource(config, environment, backend);
+    graphql.registerMetrics(environment.metrics());
+    environment.jersey().register(graphql);
 
     final String textModUri = config.textModUri;
     final Client jerseyClient = createModelingClient(config, environment);
     environment.jersey().register(new DocSetsResource(backend, new InMemoryDocSetStore(),
       config.documentSets, UriBuilder.fromPath(config.apiUri), jerseyClient.target(textModUri)));
-    environment.jersey().register(new DocumentsResource(backend, jerseyClient.target(textModUri)));
+    environment.jersey().register(new DocumentsResource(backend, createBulkIngest(config, environment, backend),
+      config.documents, jerseyClient.target(textModUri)));
     environment.jersey().register(new SearchResource(jerseyClient.target(textModUri)));
     environment.jersey().register(
       new AboutResource(getName(), buildProperties, jerseyClient, config, backend));
@@ -185,6 +233,25 @@ public class Server extends Application<Server.Config> {
       Level.FINE, LoggingFeature.Verbosity.PAYLOAD_ANY, 1024));
 
     backend.registerHealthChecks(environment.healthChecks());
+    backend.registerMetrics(environment.metrics());
+  }
+
+  private GraphQLResource createGraphQLResource(Config config, Environment environment, ElasticBackend backend) {
+    int threads = config.graphql.threads;
+    ExecutorService executor = threads == 0 ? null : environment.lifecycle().executorService("graphql-%d")
+                                                                .minThreads(threads)
+                                                                .maxThreads(threads)
+                                                                .build();
+    return new GraphQLResource(backend, executor, config.graphql);
+  }
+
+  private BulkIngest createBulkIngest(Config config, Environment environment, ElasticBackend backend) {
+    int threads = config.bulkIngest.threads;
+    ExecutorService executor = environment.lifecycle().executorService("bulk-ingest-%d")
+                                          .minThreads(threads)
+                                          .maxThreads(threads)
+                                          .build();
+    return new BulkIngest(backend, executor, config.bulkIngest);
   }
 
   private Client createModelingClient(Config config, Environment environment) {
@@ -217,12 +284,33 @@ public class Server extends Application<Server.Config> {
     return Optional.empty();
   }
 
-  private ElasticBackend createBackend(Config config) throws IOException {
+  private OriginalStore createOriginalStore(Config config, Environment environment) throws IOException {
+    OriginalStore originals = new OriginalStore(Paths.get(config.storage.directory), config.storage);
+
+    long interval = config.storage.blobCollectionInterval.toMilliseconds();
+    environment.lifecycle().scheduledExecutorService("blob-collector").build().scheduleWithFixedDelay(() -> {
+      try {
+        int deleted = originals.collectGarbage(interval);
+        LOG.info("Deleted {} unused blobs of originals", deleted);
+      } catch (Throwable e) {
+        LOG.warn("Collecting unused blobs of originals failed", e);
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+    return originals;
+  }
+
+  private ElasticBackend createBackend(Config config, Environment environment, OriginalStore originals)
+    throws IOException {
     Mapping mapping = new Mapping(config.es.fields, config.es.namespaces, false);
+    int threads = config.es.callbackThreads;
+    ExecutorService callbacks = environment.lifecycle().executorService("es-callback-%d")
+                                           .minThreads(threads)
+                                           .maxThreads(threads)
+                                           .build();
 
     final ElasticBackend backend =
       new ElasticBackend(config.es.hosts, config.es.documentIndex, config.es.documentType, mapping,
-        Paths.get(config.storage.directory));
+        originals, config.es.annotationIds, config.es.annotationCacheSize.toBytes(), callbacks);
     backend.initIndices();
     return backend;
   }
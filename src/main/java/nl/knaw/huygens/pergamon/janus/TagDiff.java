@@ -0,0 +1,88 @@
+package nl.knaw.huygens.pergamon.janus;
+
+import nl.knaw.huygens.pergamon.janus.xml.TaggedText;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Aligns the tags of a new version of a document with those of the previous version.
+ * <p>
+ * Two tags correspond when they have the same type and attributes and appear at the same place
+ * in the sequence of tags, i.e., when the sequence of tags has been edited only around them.
+ * Offsets are not compared, since an edit to the text shifts every tag after it.
+ * <p>
+ * The common prefix and suffix are matched in linear time. The part in between is aligned
+ * with a longest common subsequence, unless it is too large; its tags are then all new.
+ */
+final class TagDiff {
+  // Upper bound on the size of the table for the longest common subsequence.
+  static final int MAX_CELLS = 1 << 22;
+
+  private TagDiff() {
+  }
+
+  /**
+   * Returns, for each tag of body, the index in old of the corresponding tag, or -1 if it is new.
+   * Matched indexes are increasing. Tags of old that are not matched have been removed.
+   *
+   * @param old The previous tags, in document order.
+   */
+  static int[] match(List<Annotation> old, TaggedText body) {
+    int n = old.size();
+    int m = body.size();
+    int[] match = new int[m];
+    Arrays.fill(match, -1);
+
+    int prefix = 0;
+    while (prefix < n && prefix < m && same(old.get(prefix), body, prefix)) {
+      match[prefix] = prefix;
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < n - prefix && suffix < m - prefix && same(old.get(n - 1 - suffix), body, m - 1 - suffix)) {
+      match[m - 1 - suffix] = n - 1 - suffix;
+      suffix++;
+    }
+
+    int a = n - prefix - suffix;
+    int b = m - prefix - suffix;
+    if (a > 0 && b > 0 && (long) (a + 1) * (b + 1) <= MAX_CELLS) {
+      lcs(old, prefix, a, body, prefix, b, match);
+    }
+    return match;
+  }
+
+  // Matches the longest common subsequence of old[i, i+a) and body[j, j+b).
+  private static void lcs(List<Annotation> old, int i, int a, TaggedText body, int j, int b, int[] match) {
+    // len[x * (b+1) + y] is the length of the LCS of old[i+x, i+a) and body[j+y, j+b).
+    int w = b + 1;
+    int[] len = new int[(a + 1) * w];
+    for (int x = a - 1; x >= 0; x--) {
+      for (int y = b - 1; y >= 0; y--) {
+        len[x * w + y] = same(old.get(i + x), body, j + y)
+          ? len[(x + 1) * w + y + 1] + 1
+          : Math.max(len[(x + 1) * w + y], len[x * w + y + 1]);
+      }
+    }
+
+    int x = 0;
+    int y = 0;
+    while (x < a && y < b) {
+      if (same(old.get(i + x), body, j + y)) {
+        match[j + y] = i + x;
+        x++;
+        y++;
+      } else if (len[(x + 1) * w + y] >= len[x * w + y + 1]) {
+        x++;
+      } else {
+        y++;
+      }
+    }
+  }
+
+  private static boolean same(Annotation tag, TaggedText body, int i) {
+    return Objects.equals(tag.type, body.type(i)) && tag.attributes.equals(body.attributes(i));
+  }
+}
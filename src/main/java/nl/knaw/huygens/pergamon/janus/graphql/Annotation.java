@@ -1,17 +1,40 @@
 package nl.knaw.huygens.pergamon.janus.graphql;
 
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
 import graphql.schema.DataFetchingEnvironment;
-import nl.knaw.huygens.pergamon.janus.ElasticBackend;
+
+import javax.annotation.Nullable;
 
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 // TODO: merge functionality into Annotation class one package up?
 public class Annotation {
   private final nl.knaw.huygens.pergamon.janus.Annotation annotation;
 
-  public Annotation(nl.knaw.huygens.pergamon.janus.Annotation annotation) {
+  /**
+   * @param bodies Loader to prime the body in, so that it is fetched along with those of sibling
+   *               annotations, or null if bodies aren't asked for.
+   */
+  Annotation(nl.knaw.huygens.pergamon.janus.Annotation annotation,
+             @Nullable BatchLoader<Map<String, Object>> bodies) {
     this.annotation = annotation;
+    if (bodies != null) {
+      bodies.prime(annotation.body);
+    }
+  }
+
+  /**
+   * Returns the loader that getBody will use for annotations selected by fields,
+   * or null if they have no body selected.
+   */
+  @Nullable
+  static BatchLoader<Map<String, Object>> bodies(RequestContext ctx, List<Field> fields,
+                                                 Map<String, FragmentDefinition> fragments) {
+    List<Field> body = Selections.children(fields, "body", fragments);
+    return body.isEmpty() ? null : ctx.documents(Document.sourceFields(body, fragments));
   }
 
   public String getAttribute(String key) {
@@ -25,8 +48,10 @@ public class Annotation {
   }
 
   public Document getBody(DataFetchingEnvironment env) {
-    ElasticBackend backend = env.getContext();
-    return Document.from(backend, annotation.body);
+    if (annotation.body == null) {
+      return null;
+    }
+    return Document.find(env.getContext(), annotation.body, env.getFields(), env.getFragmentsByName());
   }
 
   public String getId() {
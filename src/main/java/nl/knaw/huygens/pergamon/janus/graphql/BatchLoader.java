@@ -0,0 +1,59 @@
+package nl.knaw.huygens.pergamon.janus.graphql;
+
+import javax.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Batches and memoizes lookups by key for a single GraphQL request, like a DataLoader.
+ * <p>
+ * graphql-java resolves fields depth-first, so the keys that a level of the query needs are
+ * not all requested before the first of them is used. Instead, resolvers that produce a list
+ * of objects prime the keys that those objects may need. The first load then fetches all
+ * pending keys at once. Keys that are primed but never loaded cost nothing, unless another
+ * load comes along.
+ *
+ * @param <V> Type of values. Keys whose value isn't found map to null.
+ */
+class BatchLoader<V> {
+  private final Function<Collection<String>, Map<String, V>> fetch;
+  private final Set<String> pending = new LinkedHashSet<>();
+  private final Map<String, V> loaded = new HashMap<>();
+
+  /**
+   * @param fetch Looks up a batch of keys. Keys that are absent from its result are not found.
+   */
+  BatchLoader(Function<Collection<String>, Map<String, V>> fetch) {
+    this.fetch = fetch;
+  }
+
+  /**
+   * Registers key to be fetched with the next batch, if it hasn't been loaded already.
+   */
+  synchronized void prime(@Nullable String key) {
+    if (key != null && !loaded.containsKey(key)) {
+      pending.add(key);
+    }
+  }
+
+  /**
+   * Returns the value for key, fetching it along with all pending keys if it hasn't been loaded yet.
+   */
+  @Nullable
+  synchronized V load(String key) {
+    if (!loaded.containsKey(key)) {
+      pending.add(key);
+      Map<String, V> values = fetch.apply(pending);
+      for (String k : pending) {
+        loaded.put(k, values.get(k));
+      }
+      pending.clear();
+    }
+    return loaded.get(key);
+  }
+}
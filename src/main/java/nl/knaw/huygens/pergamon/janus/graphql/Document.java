@@ -1,41 +1,100 @@
 package nl.knaw.huygens.pergamon.janus.graphql;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
 import graphql.schema.DataFetchingEnvironment;
-import nl.knaw.huygens.pergamon.janus.DocAndAnnotations;
-import nl.knaw.huygens.pergamon.janus.ElasticBackend;
 
+import javax.annotation.Nullable;
+
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 // TODO: merge with DocAndAnnotations?
 public class Document {
+  // Fields that need nothing from the document's _source.
+  private static final Set<String> NO_SOURCE = ImmutableSet.of("id", "annotations", "__typename");
+  // Fields that need only part of the _source, and the _source field they need.
+  private static final Map<String, String> SOURCE_FIELDS = ImmutableMap.of("text", "body");
+
   private final String id;
-  private final String text;
+  // The _source fields to fetch for this document, or null for all of them.
+  private final Set<String> fields;
+  // Fetched lazily if null.
+  private Map<String, Object> source;
+
+  /**
+   * Returns the document with the given id, or null if there is none.
+   * Only the parts of its _source needed by the selection of fields are fetched, along
+   * with those of other documents that have been primed in ctx (see {@link #sourceFields}).
+   */
+  @Nullable
+  static Document find(RequestContext ctx, String id, List<Field> fields, Map<String, FragmentDefinition> fragments) {
+    Set<String> needed = sourceFields(fields, fragments);
+    Map<String, Object> source = ctx.documents(needed).load(id);
+    return source == null ? null : new Document(id, needed, source);
+  }
+
+  /**
+   * A document that is known to exist, whose _source fields are fetched when first needed.
+   */
+  Document(String id, @Nullable Set<String> fields) {
+    this(id, fields, null);
+  }
 
-  public static Document from(ElasticBackend backend, String id) {
-    // TODO need Backend::getDocument
-    DocAndAnnotations doc = backend.getWithAnnotations(id, false);
-    return doc == null ? null : new Document(doc);
+  private Document(String id, @Nullable Set<String> fields, @Nullable Map<String, Object> source) {
+    this.id = id;
+    this.fields = fields;
+    this.source = source;
   }
 
-  private Document(DocAndAnnotations doc) {
-    this.id = doc.id;
-    this.text = doc.text;
+  /**
+   * Returns the _source fields that the selection under fields, which must be of type Document,
+   * needs, or null if it needs all of them. An empty set means that the document need only exist.
+   */
+  @Nullable
+  static Set<String> sourceFields(List<Field> fields, Map<String, FragmentDefinition> fragments) {
+    Set<String> result = new HashSet<>();
+    for (Field child : Selections.children(fields, fragments)) {
+      String name = child.getName();
+      if (SOURCE_FIELDS.containsKey(name)) {
+        result.add(SOURCE_FIELDS.get(name));
+      } else if (!NO_SOURCE.contains(name)) {
+        return null;
+      }
+    }
+    return result;
   }
 
-  public List<Annotation> getAnnotations(DataFetchingEnvironment env) {
-    ElasticBackend backend = env.getContext();
-    return backend.getAnnotations(id, null, false)
-                  .stream()
-                  .map(Annotation::new)
-                  .collect(Collectors.toList());
+  public List<Annotation> getAnnotations(Integer limit, String after, DataFetchingEnvironment env) {
+    RequestContext ctx = env.getContext();
+    List<nl.knaw.huygens.pergamon.janus.Annotation> annotations;
+    if (limit == null && after == null) {
+      annotations = ctx.annotations.load(id);
+    } else {
+      annotations = ctx.call(backend -> backend.getDocumentAnnotations(id, null, false,
+        limit == null ? Integer.MAX_VALUE : limit, after));
+    }
+    BatchLoader<Map<String, Object>> bodies = Annotation.bodies(ctx, env.getFields(), env.getFragmentsByName());
+    return annotations.stream()
+                      .map(ann -> new Annotation(ann, bodies))
+                      .collect(Collectors.toList());
   }
 
   public String getId() {
     return id;
   }
 
-  public String getText() {
-    return text;
+  public String getText(DataFetchingEnvironment env) {
+    if (source == null) {
+      RequestContext ctx = env.getContext();
+      source = ctx.documents(fields).load(id);
+    }
+    // The document may have been deleted since it was found.
+    return source == null ? null : (String) source.get("body");
   }
 }
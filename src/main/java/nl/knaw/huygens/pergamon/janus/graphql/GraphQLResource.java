@@ -1,19 +1,35 @@
 package nl.knaw.huygens.pergamon.janus.graphql;
 
+import com.codahale.metrics.MetricRegistry;
 import com.coxautodev.graphql.tools.SchemaParser;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import graphql.ErrorType;
 import graphql.ExecutionResult;
-import graphql.GraphQL;
+import graphql.ExecutionResultImpl;
+import graphql.GraphQLError;
+import graphql.execution.Execution;
+import graphql.execution.ExecutionId;
+import graphql.execution.ExecutionStrategy;
+import graphql.execution.SimpleExecutionStrategy;
+import graphql.execution.instrumentation.InstrumentationContext;
+import graphql.execution.instrumentation.parameters.ExecutionParameters;
+import graphql.language.SourceLocation;
 import graphql.schema.GraphQLSchema;
 import io.swagger.annotations.Api;
 import nl.knaw.huygens.pergamon.janus.ElasticBackend;
 
+import javax.annotation.Nullable;
+import javax.validation.constraints.Min;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 
-import static graphql.GraphQL.newGraphQL;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 @Api(GraphQLResource.PATH)
 @Path(GraphQLResource.PATH)
@@ -22,22 +38,179 @@ import static graphql.GraphQL.newGraphQL;
 public class GraphQLResource {
   static final String PATH = "graphql";
 
+  public static class Config {
+    // Maximum number of parsed and validated queries that are kept, and can be referred to by id.
+    @JsonProperty
+    @Min(0)
+    int queryCacheSize = 1000;
+
+    // Number of threads that resolve fields concurrently, per server. With zero, each query
+    // is resolved on its request thread only.
+    @JsonProperty
+    @Min(0)
+    public int threads = 8;
+
+    // Greatest nesting of fields in a query.
+    @JsonProperty
+    @Min(1)
+    int maxDepth = 10;
+
+    // Greatest number of fields in a query.
+    @JsonProperty
+    @Min(1)
+    int maxComplexity = 200;
+
+    // Greatest estimated cost of a query (see QueryCost).
+    @JsonProperty
+    @Min(1)
+    long maxCost = 5000;
+
+    // Assumed length of lists whose length isn't limited by an argument, for estimating costs.
+    @JsonProperty
+    @Min(0)
+    int defaultListSize = 100;
+  }
+
+  /**
+   * Body of a JSON request. Either query or id must be given. If both are, id must be the
+   * id of query (see {@link QueryCache}).
+   */
+  public static class QueryRequest {
+    @JsonProperty
+    String query;
+
+    @JsonProperty
+    String operationName;
+
+    @JsonProperty
+    Map<String, Object> variables;
+
+    @JsonProperty
+    String id;
+  }
+
   private final ElasticBackend backend;
   private final GraphQLSchema schema;
+  private final QueryMetrics metrics;
+  // What GraphQL.execute does after parsing and validation; stateless, so it is shared.
+  private final Execution execution;
+  private final QueryCache queries;
+  private final QueryCost costs;
+  private final long maxCost;
 
-  public GraphQLResource(ElasticBackend backend) {
+  /**
+   * @param executor Executor for resolving fields concurrently, or null to resolve them on the request thread.
+   */
+  public GraphQLResource(ElasticBackend backend, @Nullable Executor executor, Config config) {
+    this(backend, schema(), executor, config);
+  }
+
+  GraphQLResource(ElasticBackend backend, GraphQLSchema schema, @Nullable Executor executor, Config config) {
     this.backend = backend;
-    schema = SchemaParser.newParser()
-                         .file("schema.graphqls")
-                         .resolvers(new Query(backend))
-                         .build()
-                         .makeExecutableSchema();
+    this.schema = schema;
+    metrics = new QueryMetrics(schema);
+    ExecutionStrategy strategy = executor == null ? new SimpleExecutionStrategy()
+      : new ParallelExecutionStrategy(executor);
+    // Mutations are meant to run in order.
+    execution = new Execution(strategy, new SimpleExecutionStrategy(), strategy, metrics);
+    queries = new QueryCache(schema, config.queryCacheSize, new QueryLimits(config.maxDepth, config.maxComplexity));
+    costs = new QueryCost(schema, config.defaultListSize);
+    maxCost = config.maxCost;
+  }
+
+  private static GraphQLSchema schema() {
+    return SchemaParser.newParser()
+                       .file("schema.graphqls")
+                       .resolvers(new Query())
+                       .build()
+                       .makeExecutableSchema();
+  }
+
+  /**
+   * Registers the execution times, costs and backend calls of queries, and the resolution times of fields, in registry.
+   */
+  public void registerMetrics(MetricRegistry registry) {
+    metrics.registerMetrics(registry);
   }
 
   @POST
   public Object run(String query) {
-    GraphQL graphql = newGraphQL(schema).build();
-    ExecutionResult result = graphql.execute(query, backend);
-    return new Response(result);
+    return new Response(execute(query, null, null, null));
+  }
+
+  @POST
+  @Consumes(MediaType.APPLICATION_JSON)
+  public Object run(QueryRequest request) {
+    return new Response(execute(request.query, request.id, request.operationName, request.variables));
+  }
+
+  // Like GraphQL.execute, but with the query parsed and validated through the cache.
+  ExecutionResult execute(@Nullable String query, @Nullable String id, @Nullable String operationName,
+                          @Nullable Map<String, Object> variables) {
+    QueryCache.PreparsedQuery prepared;
+    if (query == null) {
+      if (id == null) {
+        return error("no query");
+      }
+      prepared = queries.getById(id);
+      if (prepared == null) {
+        return error("PersistedQueryNotFound");
+      }
+    } else {
+      if (id != null && !id.equals(QueryCache.id(query))) {
+        return error("id does not match query");
+      }
+      prepared = queries.get(query);
+    }
+    if (prepared.errors != null) {
+      return new ExecutionResultImpl(prepared.errors);
+    }
+
+    if (variables == null) {
+      variables = Collections.emptyMap();
+    }
+    long cost = costs.of(prepared.document, operationName, variables);
+    metrics.recordCost(cost);
+    if (cost > maxCost) {
+      return error(String.format("query cost %d exceeds maximum of %d", cost, maxCost));
+    }
+
+    // Loaders batch and memoize lookups within this request only, so results are never stale across requests.
+    RequestContext context = new RequestContext(backend);
+    InstrumentationContext<ExecutionResult> instrumented =
+      metrics.beginExecution(new ExecutionParameters(query, operationName, context, variables));
+    ExecutionResult result;
+    try {
+      result = execution.execute(ExecutionId.generate(), schema, context, prepared.document, operationName, variables);
+    } catch (RuntimeException e) {
+      instrumented.onEnd(e);
+      throw e;
+    }
+    instrumented.onEnd(result);
+    return result;
+  }
+
+  private static ExecutionResult error(String message) {
+    return new ExecutionResultImpl(Collections.singletonList(validationError(message)));
+  }
+
+  // An error that stops a query from being executed.
+  static GraphQLError validationError(String message) {
+    return new GraphQLError() {
+      @Override
+      public String getMessage() {
+        return message;
+      }
+
+      @Override
+      public List<SourceLocation> getLocations() {
+        return null;
+      }
+
+      @Override
+      public ErrorType getErrorType() {
+        return ErrorType.ValidationError;
+      }
+    };
   }
 }
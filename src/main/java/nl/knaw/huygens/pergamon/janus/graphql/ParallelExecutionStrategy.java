@@ -0,0 +1,115 @@
+package nl.knaw.huygens.pergamon.janus.graphql;
+
+import graphql.ExecutionResult;
+import graphql.ExecutionResultImpl;
+import graphql.GraphQLException;
+import graphql.execution.ExecutionContext;
+import graphql.execution.ExecutionParameters;
+import graphql.execution.ExecutionStrategy;
+import graphql.execution.NonNullableFieldWasNullException;
+import graphql.execution.TypeInfo;
+import graphql.language.Field;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLList;
+import graphql.schema.GraphQLModifiedType;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLType;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Resolves the fields of an object concurrently, on a bounded executor.
+ * <p>
+ * Only fields of object or list type are handed to the executor, as those are the ones that
+ * may go to Elasticsearch. Scalars are resolved on the calling thread.
+ * <p>
+ * Unlike graphql-java's ExecutorServiceExecutionStrategy, this never has a thread wait for a
+ * field that is still queued: the caller resolves such fields itself. Nested objects therefore
+ * can't exhaust the executor and deadlock, however deep the query and however few the threads.
+ */
+class ParallelExecutionStrategy extends ExecutionStrategy {
+  private final Executor executor;
+
+  ParallelExecutionStrategy(Executor executor) {
+    this.executor = executor;
+  }
+
+  @Override
+  public ExecutionResult execute(ExecutionContext context, ExecutionParameters parameters) {
+    GraphQLObjectType type = parameters.typeInfo().castType(GraphQLObjectType.class);
+    Map<String, FutureTask<ExecutionResult>> tasks = new LinkedHashMap<>();
+    boolean first = true;
+    for (Map.Entry<String, List<Field>> entry : parameters.fields().entrySet()) {
+      FutureTask<ExecutionResult> task = new FutureTask<>(() -> resolveField(context, parameters, entry.getValue()));
+      tasks.put(entry.getKey(), task);
+      // The first one is left for this thread.
+      if (fork(context, type, entry.getValue().get(0))) {
+        if (!first) {
+          try {
+            executor.execute(task);
+          } catch (RejectedExecutionException e) {
+            // Resolved below.
+          }
+        }
+        first = false;
+      }
+    }
+
+    Map<String, Object> results = new LinkedHashMap<>();
+    for (Map.Entry<String, FutureTask<ExecutionResult>> entry : tasks.entrySet()) {
+      FutureTask<ExecutionResult> task = entry.getValue();
+      try {
+        task.run(); // No-op if the executor has started it.
+        ExecutionResult result = get(task);
+        results.put(entry.getKey(), result == null ? null : result.getData());
+      } catch (NonNullableFieldWasNullException e) {
+        // As in SimpleExecutionStrategy: null this object, or its parent if this one can't be null.
+        tasks.values().forEach(t -> t.cancel(false));
+        TypeInfo typeInfo = e.getTypeInfo();
+        if (typeInfo.hasParentType() && typeInfo.parentTypeInfo().typeIsNonNull()) {
+          throw e;
+        }
+        results = null;
+        break;
+      }
+    }
+    return new ExecutionResultImpl(results, context.getErrors());
+  }
+
+  // Whether resolving field may be slow enough to do on another thread.
+  private boolean fork(ExecutionContext context, GraphQLObjectType type, Field field) {
+    GraphQLFieldDefinition definition = getFieldDef(context.getGraphQLSchema(), type, field);
+    GraphQLType fieldType = definition.getType();
+    while (fieldType instanceof GraphQLModifiedType) {
+      if (fieldType instanceof GraphQLList) {
+        return true;
+      }
+      fieldType = ((GraphQLModifiedType) fieldType).getWrappedType();
+    }
+    return fieldType instanceof GraphQLObjectType;
+  }
+
+  private static ExecutionResult get(FutureTask<ExecutionResult> task) {
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof java.lang.Error) {
+        throw (java.lang.Error) cause;
+      }
+      throw new GraphQLException(cause);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GraphQLException(e);
+    }
+  }
+}
@@ -1,31 +1,37 @@
 package nl.knaw.huygens.pergamon.janus.graphql;
 
 import com.coxautodev.graphql.tools.GraphQLQueryResolver;
-import nl.knaw.huygens.pergamon.janus.ElasticBackend;
+import graphql.schema.DataFetchingEnvironment;
 
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
 
+// Resolvers get at the backend through the RequestContext, which counts their calls.
 public class Query implements GraphQLQueryResolver {
-  private final ElasticBackend backend;
-
-  public Query(ElasticBackend backend) {
-    this.backend = backend;
+  public Annotation annotation(String id, DataFetchingEnvironment env) {
+    RequestContext ctx = env.getContext();
+    nl.knaw.huygens.pergamon.janus.Annotation ann = ctx.call(backend -> backend.getAnnotation(id));
+    return ann == null ? null : new Annotation(ann, Annotation.bodies(ctx, env.getFields(), env.getFragmentsByName()));
   }
 
-  public Annotation annotation(String id) {
-    nl.knaw.huygens.pergamon.janus.Annotation ann = backend.getAnnotation(id);
-    return ann == null ? null : new Annotation(ann);
+  public Document document(String id, DataFetchingEnvironment env) {
+    return Document.find(env.getContext(), id, env.getFields(), env.getFragmentsByName());
   }
 
-  public Document document(String id) {
-    return Document.from(backend, id);
-  }
+  public List<Document> fulltext(String query, int from, int count, DataFetchingEnvironment env) {
+    RequestContext ctx = env.getContext();
+    List<String> ids = ctx.call(backend -> backend.listDocs(query, from, count)).result;
 
-  public List<Document> fulltext(String query, int from, int count) {
-    return backend.listDocs(query, from, count).result
-      .stream()
-      .map(id -> Document.from(backend, id))
-      .collect(Collectors.toList());
+    // The search found these, so they exist. Their _source and annotations are fetched
+    // in one go, and only if asked for.
+    Set<String> fields = Document.sourceFields(env.getFields(), env.getFragmentsByName());
+    if (fields == null || !fields.isEmpty()) {
+      ids.forEach(ctx.documents(fields)::prime);
+    }
+    if (!Selections.children(env.getFields(), "annotations", env.getFragmentsByName()).isEmpty()) {
+      ids.forEach(ctx.annotations::prime);
+    }
+    return ids.stream().map(id -> new Document(id, fields)).collect(Collectors.toList());
   }
 }
@@ -0,0 +1,107 @@
+package nl.knaw.huygens.pergamon.janus.graphql;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import graphql.GraphQL;
+import graphql.GraphQLError;
+import graphql.language.Document;
+import graphql.parser.Parser;
+import graphql.schema.GraphQLSchema;
+import graphql.validation.Validator;
+
+import javax.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Parsed and validated queries, so that repeated queries skip both steps.
+ * <p>
+ * Queries are keyed by their id, the hex SHA-256 of their text. Clients can send just the id
+ * of a query that they have sent before (a persisted query); if it has been evicted since,
+ * they have to send the text again.
+ */
+class QueryCache {
+  /**
+   * A query that has been parsed and validated. Either document or errors is null.
+   */
+  static class PreparsedQuery {
+    final Document document;
+    final List<GraphQLError> errors;
+
+    private PreparsedQuery(@Nullable Document document, @Nullable List<GraphQLError> errors) {
+      this.document = document;
+      this.errors = errors;
+    }
+  }
+
+  private final GraphQLSchema schema;
+  private final GraphQL graphql;
+  private final QueryLimits limits;
+  private final Cache<String, PreparsedQuery> cache;
+
+  /**
+   * @param maxSize Maximum number of queries to keep.
+   * @param limits  Limits that queries must satisfy to be executed.
+   */
+  QueryCache(GraphQLSchema schema, int maxSize, QueryLimits limits) {
+    this.schema = schema;
+    this.limits = limits;
+    this.graphql = GraphQL.newGraphQL(schema).build();
+    this.cache = CacheBuilder.newBuilder().maximumSize(maxSize).recordStats().build();
+  }
+
+  /**
+   * Returns the id of query.
+   */
+  static String id(String query) {
+    return Hashing.sha256().hashString(query, UTF_8).toString();
+  }
+
+  /**
+   * Returns query, parsed and validated.
+   */
+  PreparsedQuery get(String query) {
+    try {
+      return cache.get(id(query), () -> prepare(query));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Returns the query with the given id, or null if it is not in the cache.
+   */
+  @Nullable
+  PreparsedQuery getById(String id) {
+    return cache.getIfPresent(id);
+  }
+
+  // Does what GraphQL.execute does before executing, then checks the limits.
+  private PreparsedQuery prepare(String query) {
+    Document document;
+    try {
+      document = new Parser().parseDocument(query);
+    } catch (RuntimeException e) {
+      // A syntax error. GraphQL reports it, with its location, as it would without the cache.
+      return new PreparsedQuery(null, graphql.execute(query).getErrors());
+    }
+
+    List<? extends GraphQLError> errors = new Validator().validateDocument(schema, document);
+    if (!errors.isEmpty()) {
+      return new PreparsedQuery(null, Collections.unmodifiableList(errors));
+    }
+    return limits.check(document)
+                 .map(msg -> new PreparsedQuery(null, Collections.singletonList(GraphQLResource.validationError(msg))))
+                 .orElseGet(() -> new PreparsedQuery(document, null));
+  }
+
+  long hits() {
+    return cache.stats().hitCount();
+  }
+}
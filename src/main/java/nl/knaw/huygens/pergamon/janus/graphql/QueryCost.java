@@ -0,0 +1,139 @@
+package nl.knaw.huygens.pergamon.janus.graphql;
+
+import com.google.common.collect.ImmutableMap;
+import graphql.language.Argument;
+import graphql.language.Definition;
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
+import graphql.language.IntValue;
+import graphql.language.OperationDefinition;
+import graphql.language.Value;
+import graphql.language.VariableReference;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLFieldsContainer;
+import graphql.schema.GraphQLList;
+import graphql.schema.GraphQLModifiedType;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.GraphQLType;
+
+import javax.annotation.Nullable;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates the load that a query puts on Elasticsearch, from the types in the schema.
+ * <p>
+ * A field of object or list type costs one, as resolving it may take a request to
+ * Elasticsearch; a scalar field costs nothing. The fields under a list count once for each
+ * element. The number of elements is taken from the field's limit or count argument, if
+ * given, and is otherwise assumed to be defaultListSize. A few fields have their own cost,
+ * in FIELD_COSTS. Introspection fields cost nothing.
+ * <p>
+ * Unlike {@link QueryLimits}, the cost depends on the variables, so it is computed for
+ * every execution. That takes a single pass over the query.
+ */
+class QueryCost {
+  // Arguments that bound the length of a list.
+  private static final String[] LIST_SIZE_ARGUMENTS = {"limit", "count"};
+
+  // Fields whose cost differs from what their type says, by Type.field.
+  private static final Map<String, Long> FIELD_COSTS = ImmutableMap.of(
+    "Annotation.attributes", 0L, // Part of the annotation.
+    "Document.text", 1L          // Fetches the body of the document.
+  );
+
+  private final GraphQLSchema schema;
+  private final int defaultListSize;
+
+  QueryCost(GraphQLSchema schema, int defaultListSize) {
+    this.schema = schema;
+    this.defaultListSize = defaultListSize;
+  }
+
+  /**
+   * Returns the cost of executing the operation with the given name in document, which must be
+   * valid, or the greatest cost of its operations if operationName is null.
+   */
+  long of(Document document, @Nullable String operationName, Map<String, Object> variables) {
+    Map<String, FragmentDefinition> fragments = Selections.fragments(document);
+    long max = 0;
+    for (Definition def : document.getDefinitions()) {
+      if (!(def instanceof OperationDefinition)) {
+        continue;
+      }
+      OperationDefinition op = (OperationDefinition) def;
+      if (operationName != null && !operationName.equals(op.getName())) {
+        continue;
+      }
+      GraphQLObjectType root = op.getOperation() == OperationDefinition.Operation.MUTATION ?
+        schema.getMutationType() : schema.getQueryType();
+      if (root != null) {
+        max = Math.max(max, cost(Selections.children(op.getSelectionSet(), fragments), root, fragments, variables));
+      }
+    }
+    return max;
+  }
+
+  private long cost(List<Field> fields, GraphQLFieldsContainer parent, Map<String, FragmentDefinition> fragments,
+                    Map<String, Object> variables) {
+    long total = 0;
+    for (Field field : fields) {
+      GraphQLFieldDefinition definition = parent.getFieldDefinition(field.getName());
+      // Introspection, or a fragment on another type.
+      if (field.getName().startsWith("__") || definition == null) {
+        continue;
+      }
+
+      boolean list = false;
+      GraphQLType type = definition.getType();
+      while (type instanceof GraphQLModifiedType) {
+        list |= type instanceof GraphQLList;
+        type = ((GraphQLModifiedType) type).getWrappedType();
+      }
+
+      long cost = FIELD_COSTS.getOrDefault(parent.getName() + "." + field.getName(),
+        list || type instanceof GraphQLObjectType ? 1L : 0L);
+      if (type instanceof GraphQLFieldsContainer) {
+        long each = cost(Selections.children(field.getSelectionSet(), fragments), (GraphQLFieldsContainer) type,
+          fragments, variables);
+        cost = add(cost, multiply(list ? listSize(field, variables) : 1, each));
+      }
+      total = add(total, cost);
+    }
+    return total;
+  }
+
+  private long listSize(Field field, Map<String, Object> variables) {
+    for (Argument arg : field.getArguments()) {
+      for (String name : LIST_SIZE_ARGUMENTS) {
+        if (name.equals(arg.getName())) {
+          Value value = arg.getValue();
+          if (value instanceof IntValue) {
+            return Math.max(0, ((IntValue) value).getValue().min(BigInteger.valueOf(Long.MAX_VALUE)).longValue());
+          }
+          if (value instanceof VariableReference) {
+            Object v = variables.get(((VariableReference) value).getName());
+            if (v instanceof Number) {
+              return Math.max(0, ((Number) v).longValue());
+            }
+          }
+        }
+      }
+    }
+    return defaultListSize;
+  }
+
+  // Saturating arithmetic, so that absurd queries don't overflow into cheap ones.
+  private static long add(long a, long b) {
+    long sum = a + b;
+    return sum < 0 ? Long.MAX_VALUE : sum;
+  }
+
+  private static long multiply(long a, long b) {
+    return b != 0 && a > Long.MAX_VALUE / b ? Long.MAX_VALUE : a * b;
+  }
+}
@@ -0,0 +1,74 @@
+package nl.knaw.huygens.pergamon.janus.graphql;
+
+import graphql.language.Definition;
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
+import graphql.language.OperationDefinition;
+import graphql.language.SelectionSet;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Limits on the shape of queries, to protect Elasticsearch from queries that fan out too far.
+ * <p>
+ * Depth is the greatest nesting of fields and complexity the number of fields, both with
+ * fragments expanded. Introspection fields (__schema, __typename, etc.) don't count, as
+ * they don't touch Elasticsearch.
+ */
+class QueryLimits {
+  private final int maxDepth;
+  private final int maxComplexity;
+
+  QueryLimits(int maxDepth, int maxComplexity) {
+    this.maxDepth = maxDepth;
+    this.maxComplexity = maxComplexity;
+  }
+
+  /**
+   * Checks each operation in document, which must be valid.
+   * Returns a description of the first limit exceeded, if any.
+   */
+  Optional<String> check(Document document) {
+    Map<String, FragmentDefinition> fragments = Selections.fragments(document);
+    for (Definition def : document.getDefinitions()) {
+      if (!(def instanceof OperationDefinition)) {
+        continue;
+      }
+      SelectionSet selections = ((OperationDefinition) def).getSelectionSet();
+      List<Field> fields = Selections.children(selections, fragments);
+      int depth = depth(fields, fragments);
+      if (depth > maxDepth) {
+        return Optional.of(String.format("query depth %d exceeds maximum of %d", depth, maxDepth));
+      }
+      int complexity = complexity(fields, fragments);
+      if (complexity > maxComplexity) {
+        return Optional.of(String.format("query complexity %d exceeds maximum of %d", complexity, maxComplexity));
+      }
+    }
+    return Optional.empty();
+  }
+
+  private static int depth(List<Field> fields, Map<String, FragmentDefinition> fragments) {
+    int depth = 0;
+    for (Field field : fields) {
+      if (!field.getName().startsWith("__")) {
+        List<Field> children = Selections.children(field.getSelectionSet(), fragments);
+        depth = Math.max(depth, 1 + depth(children, fragments));
+      }
+    }
+    return depth;
+  }
+
+  private static int complexity(List<Field> fields, Map<String, FragmentDefinition> fragments) {
+    int complexity = 0;
+    for (Field field : fields) {
+      if (!field.getName().startsWith("__")) {
+        complexity += 1 + complexity(Selections.children(field.getSelectionSet(), fragments), fragments);
+      }
+    }
+    return complexity;
+  }
+}
@@ -0,0 +1,131 @@
+package nl.knaw.huygens.pergamon.janus.graphql;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import graphql.ExecutionResult;
+import graphql.execution.instrumentation.Instrumentation;
+import graphql.execution.instrumentation.InstrumentationContext;
+import graphql.execution.instrumentation.NoOpInstrumentation;
+import graphql.execution.instrumentation.parameters.DataFetchParameters;
+import graphql.execution.instrumentation.parameters.ExecutionParameters;
+import graphql.execution.instrumentation.parameters.FieldFetchParameters;
+import graphql.execution.instrumentation.parameters.FieldParameters;
+import graphql.execution.instrumentation.parameters.ValidationParameters;
+import graphql.language.Document;
+import graphql.schema.GraphQLFieldDefinition;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.GraphQLType;
+import graphql.validation.ValidationError;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * Records, per query, its execution time, cost and number of calls to the backend, and per
+ * field of the schema, the time its resolver takes.
+ * <p>
+ * Field times include waiting for batched lookups, so the first field of a batch takes the
+ * time of the whole batch and the others take next to none.
+ */
+class QueryMetrics implements Instrumentation {
+  private static final Instrumentation NOOP = NoOpInstrumentation.INSTANCE;
+
+  private final Timer queries = new Timer();
+  private final Histogram costs = new Histogram(new ExponentiallyDecayingReservoir());
+  private final Histogram backendCalls = new Histogram(new ExponentiallyDecayingReservoir());
+  // By Type.field, for the object types in the schema other than the introspection types.
+  private final Map<String, Timer> fields = new HashMap<>();
+
+  QueryMetrics(GraphQLSchema schema) {
+    for (GraphQLType type : schema.getAllTypesAsList()) {
+      if (type instanceof GraphQLObjectType && !type.getName().startsWith("__")) {
+        for (GraphQLFieldDefinition field : ((GraphQLObjectType) type).getFieldDefinitions()) {
+          fields.put(type.getName() + "." + field.getName(), new Timer());
+        }
+      }
+    }
+  }
+
+  /**
+   * Registers the query and field metrics in registry.
+   */
+  void registerMetrics(MetricRegistry registry) {
+    registry.register(name(GraphQLResource.class, "queries"), queries);
+    registry.register(name(GraphQLResource.class, "cost"), costs);
+    registry.register(name(GraphQLResource.class, "backendCalls"), backendCalls);
+    fields.forEach((field, timer) -> registry.register(name(GraphQLResource.class, "fields", field), timer));
+  }
+
+  void recordCost(long cost) {
+    costs.update(cost);
+  }
+
+  @Override
+  public InstrumentationContext<ExecutionResult> beginExecution(ExecutionParameters parameters) {
+    Timer.Context timer = queries.time();
+    RequestContext context = parameters.getContext();
+    return new InstrumentationContext<ExecutionResult>() {
+      @Override
+      public void onEnd(ExecutionResult result) {
+        end();
+      }
+
+      @Override
+      public void onEnd(Exception e) {
+        end();
+      }
+
+      private void end() {
+        timer.stop();
+        backendCalls.update(context.backendCalls());
+      }
+    };
+  }
+
+  @Override
+  public InstrumentationContext<Object> beginFieldFetch(FieldFetchParameters parameters) {
+    Timer timer = fields.get(parameters.getEnvironment().getParentType().getName() + "." +
+      parameters.getField().getName());
+    if (timer == null) {
+      return NOOP.beginFieldFetch(parameters);
+    }
+    Timer.Context context = timer.time();
+    return new InstrumentationContext<Object>() {
+      @Override
+      public void onEnd(Object result) {
+        context.stop();
+      }
+
+      @Override
+      public void onEnd(Exception e) {
+        context.stop();
+      }
+    };
+  }
+
+  @Override
+  public InstrumentationContext<Document> beginParse(ExecutionParameters parameters) {
+    return NOOP.beginParse(parameters);
+  }
+
+  @Override
+  public InstrumentationContext<List<ValidationError>> beginValidation(ValidationParameters parameters) {
+    return NOOP.beginValidation(parameters);
+  }
+
+  @Override
+  public InstrumentationContext<ExecutionResult> beginDataFetch(DataFetchParameters parameters) {
+    return NOOP.beginDataFetch(parameters);
+  }
+
+  @Override
+  public InstrumentationContext<ExecutionResult> beginField(FieldParameters parameters) {
+    return NOOP.beginField(parameters);
+  }
+}
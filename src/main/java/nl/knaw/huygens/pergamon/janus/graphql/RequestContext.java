@@ -0,0 +1,52 @@
+package nl.knaw.huygens.pergamon.janus.graphql;
+
+import nl.knaw.huygens.pergamon.janus.ElasticBackend;
+
+import javax.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Context of a single GraphQL request, available to resolvers through DataFetchingEnvironment.getContext.
+ */
+class RequestContext {
+  private final ElasticBackend backend;
+  private final AtomicInteger backendCalls = new AtomicInteger();
+
+  // Sources of documents, by id, per set of _source fields fetched (null meaning all).
+  private final Map<Set<String>, BatchLoader<Map<String, Object>>> documents = new HashMap<>();
+
+  // Annotations directly on documents, by document id.
+  final BatchLoader<List<nl.knaw.huygens.pergamon.janus.Annotation>> annotations;
+
+  RequestContext(ElasticBackend backend) {
+    this.backend = backend;
+    annotations = new BatchLoader<>(ids -> call(b -> b.getAnnotationsOn(ids)));
+  }
+
+  /**
+   * Calls the backend, counting the call.
+   */
+  <T> T call(Function<ElasticBackend, T> f) {
+    backendCalls.incrementAndGet();
+    return f.apply(backend);
+  }
+
+  // Number of calls to the backend so far.
+  int backendCalls() {
+    return backendCalls.get();
+  }
+
+  /**
+   * Returns the loader for sources of documents restricted to fields, or complete if fields is null.
+   * With no fields, it only tells which documents exist.
+   */
+  synchronized BatchLoader<Map<String, Object>> documents(@Nullable Set<String> fields) {
+    return documents.computeIfAbsent(fields, f -> new BatchLoader<>(ids -> call(b -> b.findDocuments(ids, f))));
+  }
+}
@@ -0,0 +1,91 @@
+package nl.knaw.huygens.pergamon.janus.graphql;
+
+import graphql.language.Definition;
+import graphql.language.Document;
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
+import graphql.language.FragmentSpread;
+import graphql.language.InlineFragment;
+import graphql.language.Selection;
+import graphql.language.SelectionSet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Walks the selection sets of query fields, so that resolvers can fetch only what is asked for.
+ * <p>
+ * Fragments are expanded. Directives (@skip, @include) are ignored: taking a skipped field
+ * into account only means fetching more than is needed.
+ */
+class Selections {
+  private Selections() {
+  }
+
+  /**
+   * Returns the fragments defined in document, by name.
+   */
+  static Map<String, FragmentDefinition> fragments(Document document) {
+    Map<String, FragmentDefinition> result = new HashMap<>();
+    for (Definition def : document.getDefinitions()) {
+      if (def instanceof FragmentDefinition) {
+        result.put(((FragmentDefinition) def).getName(), (FragmentDefinition) def);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the fields selected directly in set.
+   */
+  static List<Field> children(SelectionSet set, Map<String, FragmentDefinition> fragments) {
+    List<Field> result = new ArrayList<>();
+    collect(set, fragments, result::add);
+    return result;
+  }
+
+  /**
+   * Returns the fields selected directly under any of fields.
+   */
+  static List<Field> children(List<Field> fields, Map<String, FragmentDefinition> fragments) {
+    List<Field> result = new ArrayList<>();
+    for (Field field : fields) {
+      collect(field.getSelectionSet(), fragments, result::add);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the fields with the given name selected directly under any of fields.
+   */
+  static List<Field> children(List<Field> fields, String name, Map<String, FragmentDefinition> fragments) {
+    List<Field> result = new ArrayList<>();
+    for (Field child : children(fields, fragments)) {
+      if (child.getName().equals(name)) {
+        result.add(child);
+      }
+    }
+    return result;
+  }
+
+  private static void collect(SelectionSet set, Map<String, FragmentDefinition> fragments, Consumer<Field> sink) {
+    if (set == null) {
+      return;
+    }
+    for (Selection selection : set.getSelections()) {
+      if (selection instanceof Field) {
+        sink.accept((Field) selection);
+      } else if (selection instanceof InlineFragment) {
+        collect(((InlineFragment) selection).getSelectionSet(), fragments, sink);
+      } else if (selection instanceof FragmentSpread) {
+        FragmentDefinition fragment = fragments.get(((FragmentSpread) selection).getName());
+        if (fragment != null) {
+          collect(fragment.getSelectionSet(), fragments, sink);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package nl.knaw.huygens.pergamon.janus.xml;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Strategies for generating the ids of the annotations that represent XML elements.
+ */
+public enum AnnotationIds {
+  /**
+   * Random (version 4) UUIDs from a cryptographically secure generator. Slow, but unguessable.
+   */
+  UUID {
+    @Override
+    public String id(String docId, int ordinal) {
+      return java.util.UUID.randomUUID().toString();
+    }
+  },
+
+  /**
+   * Random (version 4) UUIDs from a fast, non-cryptographic generator.
+   */
+  FAST {
+    @Override
+    public String id(String docId, int ordinal) {
+      ThreadLocalRandom rnd = ThreadLocalRandom.current();
+      long msb = rnd.nextLong() & ~0xF000L | 0x4000L; // version 4
+      long lsb = rnd.nextLong() & ~(0xCL << 60) | 0x8L << 60; // IETF variant
+      return new java.util.UUID(msb, lsb).toString();
+    }
+  },
+
+  /**
+   * The document id and the ordinal of the element, e.g., "doc:0" for the root element of "doc".
+   * <p>
+   * These ids are deterministic, so re-indexing a document overwrites its annotations instead of
+   * adding new ones. The separator ':' cannot occur in document ids, so ids are unique.
+   */
+  SEQUENTIAL {
+    @Override
+    public String id(String docId, int ordinal) {
+      return docId + ":" + ordinal;
+    }
+
+    @Override
+    public boolean deterministic() {
+      return true;
+    }
+  };
+
+  /**
+   * Returns the id for the element of document docId that is the ordinal'th in document order,
+   * counting from zero.
+   */
+  public abstract String id(String docId, int ordinal);
+
+  /**
+   * Whether the same document and ordinal always produce the same id.
+   */
+  public boolean deterministic() {
+    return false;
+  }
+}
@@ -3,6 +3,9 @@ package nl.knaw.huygens.pergamon.janus.xml;
 import com.google.common.base.Utf8;
 import nu.xom.Element;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 /**
  * Converts XML to text-with-annotations. Uses byte offsets.
  */
@@ -13,6 +16,14 @@ public class TaggedBytes extends TaggedText {
     super(doc);
   }
 
+  public TaggedBytes(XMLStreamReader in, String id) throws XMLStreamException {
+    this(in, id, AnnotationIds.UUID);
+  }
+
+  public TaggedBytes(XMLStreamReader in, String id, AnnotationIds ids) throws XMLStreamException {
+    super(in, id, ids);
+  }
+
   @Override
   protected void append(String s) {
     sb.append(s);
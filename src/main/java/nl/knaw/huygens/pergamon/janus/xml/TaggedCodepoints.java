@@ -2,6 +2,9 @@ package nl.knaw.huygens.pergamon.janus.xml;
 
 import nu.xom.Element;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 /**
  * Converts XML to text-with-annotations. Uses UTF-16 offsets.
  */
@@ -16,6 +19,18 @@ public class TaggedCodepoints extends TaggedText {
     super(doc, id);
   }
 
+  public TaggedCodepoints(Element doc, String id, AnnotationIds ids) {
+    super(doc, id, ids);
+  }
+
+  public TaggedCodepoints(XMLStreamReader in, String id) throws XMLStreamException {
+    this(in, id, AnnotationIds.UUID);
+  }
+
+  public TaggedCodepoints(XMLStreamReader in, String id, AnnotationIds ids) throws XMLStreamException {
+    super(in, id, ids);
+  }
+
   @Override
   protected void append(String s) {
     sb.append(s);
@@ -8,40 +8,98 @@ import nu.xom.Element;
 import nu.xom.Node;
 import nu.xom.Text;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.UUID;
 
-import static java.util.stream.IntStream.range;
+import static javax.xml.stream.XMLStreamConstants.CDATA;
+import static javax.xml.stream.XMLStreamConstants.CHARACTERS;
+import static javax.xml.stream.XMLStreamConstants.END_ELEMENT;
+import static javax.xml.stream.XMLStreamConstants.SPACE;
+import static javax.xml.stream.XMLStreamConstants.START_ELEMENT;
 
 /**
  * Base class for XML-to-text-with-tags converters.
+ * <p>
+ * Tags are stored in flat arrays, indexed by their position in document order.
+ * Annotation objects and attribute maps are only built when asked for.
  */
 public abstract class TaggedText {
+  private static final int INITIAL_CAPACITY = 16;
+
   public final String docId;
-  private final HashMap<Node, String> nodeId = new HashMap<>();
+  private final AnnotationIds ids;
   private Map<Integer, List<Comment>> comments = new HashMap<>();
-  final List<Annotation> tags;
-  final StringBuilder sb;
+
+  // Text, while it's being built. Released when the text is materialized.
+  StringBuilder sb = new StringBuilder();
+  private String text;
+
+  // Per tag: start and end offsets, type, id (generated on demand), and the position of its
+  // first attribute in attrNames/attrValues. Its attributes extend up to the next tag's first.
+  private int ntags = 0;
+  private int[] starts = new int[INITIAL_CAPACITY];
+  private int[] ends = new int[INITIAL_CAPACITY];
+  private String[] types = new String[INITIAL_CAPACITY];
+  private String[] tagIds = new String[INITIAL_CAPACITY];
+  private int[] attrStarts = new int[INITIAL_CAPACITY + 1];
+
+  private int nattrs = 0;
+  private String[] attrNames = new String[INITIAL_CAPACITY];
+  private String[] attrValues = new String[INITIAL_CAPACITY];
+
+  private List<Annotation> tags;
 
   TaggedText(Element doc) {
     this(doc, null);
   }
 
   TaggedText(Element doc, String docId) {
+    this(doc, docId, AnnotationIds.UUID);
+  }
+
+  TaggedText(Element doc, String docId, AnnotationIds ids) {
     if (docId == null) {
       docId = UUID.randomUUID().toString();
     }
     this.docId = docId;
-    tags = new ArrayList<>();
-    sb = new StringBuilder();
-    nodeId.put(doc, docId);
+    this.ids = ids;
     traverse(doc);
   }
 
+  /**
+   * Converts the element at which in is positioned, reading its events in a single pass.
+   * <p>
+   * If in is positioned at the start of a document, it is first advanced to the root element.
+   * Afterwards, in is positioned at the element's end tag. No tree is built, so memory use
+   * is bounded by the size of the output, not by that of the input.
+   *
+   * @param ids Generator for the ids of the tags.
+   */
+  TaggedText(XMLStreamReader in, String docId, AnnotationIds ids) throws XMLStreamException {
+    if (docId == null) {
+      docId = UUID.randomUUID().toString();
+    }
+    this.docId = docId;
+    this.ids = ids;
+    while (in.getEventType() != START_ELEMENT) {
+      in.next();
+    }
+    traverse(in);
+  }
+
   /**
    * The tags corresponding to tags etc. in the original XML.
    *
@@ -49,12 +107,78 @@ public abstract class TaggedText {
    */
   @JsonProperty
   public List<Annotation> tags() {
-    return Collections.unmodifiableList(tags);
+    if (tags == null) {
+      List<Annotation> result = new ArrayList<>(ntags);
+      for (int i = 0; i < ntags; i++) {
+        Annotation tag = new Annotation(starts[i], ends[i], docId, types[i], null, "xml", id(i));
+        tag.attributes.putAll(attributes(i));
+        result.add(tag);
+      }
+      tags = Collections.unmodifiableList(result);
+    }
+    return tags;
   }
 
   @JsonProperty
   public String text() {
-    return sb.toString();
+    if (text == null) {
+      text = sb.toString();
+      sb = null;
+    }
+    return text;
+  }
+
+  /**
+   * Number of tags.
+   */
+  public int size() {
+    return ntags;
+  }
+
+  /**
+   * Start offset of the i'th tag.
+   */
+  public int start(int i) {
+    return starts[checkIndex(i)];
+  }
+
+  /**
+   * End offset of the i'th tag.
+   */
+  public int end(int i) {
+    return ends[checkIndex(i)];
+  }
+
+  /**
+   * Type (qualified element name) of the i'th tag.
+   */
+  public String type(int i) {
+    return types[checkIndex(i)];
+  }
+
+  /**
+   * Id of the i'th tag.
+   */
+  public String id(int i) {
+    if (tagIds[checkIndex(i)] == null) {
+      tagIds[i] = ids.id(docId, i);
+    }
+    return tagIds[i];
+  }
+
+  /**
+   * Attributes of the i'th tag, as an immutable view. Unlike the attributes of {@link #tags()},
+   * these are in document order.
+   */
+  public Map<String, String> attributes(int i) {
+    return new AttributeMap(attrStarts[checkIndex(i)], attrStarts[i + 1]);
+  }
+
+  private int checkIndex(int i) {
+    if (i < 0 || i >= ntags) {
+      throw new IndexOutOfBoundsException(String.format("tag %d of %d", i, ntags));
+    }
+    return i;
   }
 
   protected abstract void append(String s);
@@ -62,93 +186,182 @@ public abstract class TaggedText {
   // Current byte/halfword/codepoint offset into the text of the input.
   protected abstract int offset();
 
-  private void traverse(Node node) {
-    if (node instanceof Text) {
-      append(node.getValue());
-    } else if (node instanceof Element) {
-      String id = UUID.randomUUID().toString();
-      int base = offset();
-      int insert = tags.size();
-      tags.add(null); // To be filled in after the recursion, when we know the end offset.
-
-      range(0, node.getChildCount()).forEach(i -> traverse(node.getChild(i)));
-
-      Element elem = (Element) node;
-      Annotation tag = new Annotation(base, offset(), docId, elem.getQualifiedName(), null, "xml", id);
-      tags.set(insert, tag);
-      range(0, elem.getAttributeCount())
-        .forEach(i -> {
-          Attribute attr = elem.getAttribute(i);
-          tag.attributes.put(attr.getQualifiedName(), attr.getValue());
-        });
-
-      String uri = elem.getNamespaceURI();
-      if (!"".equals(uri)) {
-        String prefix = elem.getNamespacePrefix();
-        if (!"".equals(prefix)) {
-          tag.attributes.put("xmlns:" + prefix, uri);
-        } else {
-          tag.attributes.put("xmlns", uri);
-        }
+  private int startElement(String type) {
+    if (ntags == starts.length) {
+      int capacity = 2 * ntags;
+      starts = Arrays.copyOf(starts, capacity);
+      ends = Arrays.copyOf(ends, capacity);
+      types = Arrays.copyOf(types, capacity);
+      tagIds = Arrays.copyOf(tagIds, capacity);
+      attrStarts = Arrays.copyOf(attrStarts, capacity + 1);
+    }
+    int tag = ntags++;
+    starts[tag] = offset();
+    types[tag] = type;
+    attrStarts[tag] = nattrs;
+    attrStarts[ntags] = nattrs;
+    return tag;
+  }
+
+  private void endElement(int tag) {
+    ends[tag] = offset();
+  }
+
+  // Adds an attribute to the most recently started tag.
+  private void addAttribute(String name, String value) {
+    if (nattrs == attrNames.length) {
+      attrNames = Arrays.copyOf(attrNames, 2 * nattrs);
+      attrValues = Arrays.copyOf(attrValues, 2 * nattrs);
+    }
+    attrNames[nattrs] = name;
+    attrValues[nattrs] = value;
+    attrStarts[ntags] = ++nattrs;
+  }
+
+  private void addNamespace(String prefix, String uri) {
+    if (uri != null && !"".equals(uri)) {
+      if (prefix != null && !"".equals(prefix)) {
+        addAttribute("xmlns:" + prefix, uri);
+      } else {
+        addAttribute("xmlns", uri);
       }
-    } else if (node instanceof Comment) {
-      comments.compute(offset(), (k, v) -> {
-        if (v == null) {
-          v = new ArrayList<>();
+    }
+  }
+
+  private void startElement(Element node) {
+    startElement(node.getQualifiedName());
+    for (int i = 0; i < node.getAttributeCount(); i++) {
+      Attribute attr = node.getAttribute(i);
+      addAttribute(attr.getQualifiedName(), attr.getValue());
+    }
+    addNamespace(node.getNamespacePrefix(), node.getNamespaceURI());
+  }
+
+  // Pre-order traversal of the tree below root. Uses an explicit stack instead of recursion,
+  // so deeply nested documents don't overflow the call stack.
+  private void traverse(Element root) {
+    // Stack of open elements: their tag indexes, nodes, and the index of the next child to visit.
+    int[] openTags = new int[INITIAL_CAPACITY];
+    Element[] openNodes = new Element[INITIAL_CAPACITY];
+    int[] nextChild = new int[INITIAL_CAPACITY];
+    int depth = 0;
+
+    openTags[0] = ntags;
+    openNodes[0] = root;
+    startElement(root);
+    depth++;
+
+    while (depth > 0) {
+      Element top = openNodes[depth - 1];
+      if (nextChild[depth - 1] == top.getChildCount()) {
+        depth--;
+        endElement(openTags[depth]);
+        openNodes[depth] = null;
+        nextChild[depth] = 0;
+        continue;
+      }
+
+      Node child = top.getChild(nextChild[depth - 1]++);
+      if (child instanceof Text) {
+        append(child.getValue());
+      } else if (child instanceof Element) {
+        if (depth == openTags.length) {
+          openTags = Arrays.copyOf(openTags, 2 * depth);
+          openNodes = Arrays.copyOf(openNodes, 2 * depth);
+          nextChild = Arrays.copyOf(nextChild, 2 * depth);
         }
-        // XXX Detaching the comment node seems to break the rest of the traversal
-        //node.detach();
-        v.add((Comment) node);
-        return v;
-      });
+        openTags[depth] = ntags;
+        openNodes[depth] = (Element) child;
+        startElement((Element) child);
+        depth++;
+      } else if (child instanceof Comment) {
+        comments.computeIfAbsent(offset(), k -> new ArrayList<>()).add((Comment) child);
+      }
     }
   }
 
-  // Pre-order traversal of t.
-  // private void traverse(Node node) {
-  //   if (node instanceof Text) {
-  //     append(node.getValue());
-  //   } else if (node instanceof Element) {
-  //     String id = UUID.randomUUID().toString();
-  //     nodeId.put(node, id);
-  //     int base = offset();
-  //     int insert = tags.size();
-  //     tags.add(null); // To be filled in after the recursion, when we know the end offset.
-  //
-  //     range(0, node.getChildCount()).forEach(i -> traverse(node.getChild(i)));
-  //
-  //     String parentId = nodeId.get(node.getParent());
-  //     if (parentId == null) {
-  //       throw new NullPointerException("null parent id");
-  //     }
-  //     Element elem = (Element) node;
-  //     Tag tag = new Tag(id, elem.getQualifiedName(), base, offset(), docId, parentId);
-  //     tags.set(insert, tag);
-  //     range(0, elem.getAttributeCount())
-  //       .forEach(i -> {
-  //         Attribute attr = elem.getAttribute(i);
-  //         tag.attributes.put(attr.getQualifiedName(), attr.getValue());
-  //       });
-  //
-  //     String uri = elem.getNamespaceURI();
-  //     if (!"".equals(uri)) {
-  //       String prefix = elem.getNamespacePrefix();
-  //       if (!"".equals(prefix)) {
-  //         tag.attributes.put("xmlns:" + prefix, uri);
-  //       } else {
-  //         tag.attributes.put("xmlns", uri);
-  //       }
-  //     }
-  //   } else if (node instanceof Comment) {
-  //     comments.compute(offset(), (k, v) -> {
-  //       if (v == null) {
-  //         v = new ArrayList<>();
-  //       }
-  //       // XXX Detaching the comment node seems to break the rest of the traversal
-  //       //node.detach();
-  //       v.add((Comment) node);
-  //       return v;
-  //     });
-  //   }
-  // }
+  // Streaming equivalent of traverse(Element): produces the same tags, in the same (pre-)order.
+  private void traverse(XMLStreamReader in) throws XMLStreamException {
+    int[] openTags = new int[INITIAL_CAPACITY];
+    int depth = 0;
+
+    for (; ; in.next()) {
+      switch (in.getEventType()) {
+        case START_ELEMENT:
+          if (depth == openTags.length) {
+            openTags = Arrays.copyOf(openTags, 2 * depth);
+          }
+          openTags[depth++] = startElement(qualifiedName(in.getPrefix(), in.getLocalName()));
+          for (int i = 0; i < in.getAttributeCount(); i++) {
+            addAttribute(qualifiedName(in.getAttributePrefix(i), in.getAttributeLocalName(i)),
+              in.getAttributeValue(i));
+          }
+          addNamespace(in.getPrefix(), in.getNamespaceURI());
+          break;
+
+        case END_ELEMENT:
+          endElement(openTags[--depth]);
+          break;
+
+        case CHARACTERS:
+        case CDATA:
+        case SPACE:
+          append(in.getText());
+          break;
+
+        default:
+          // Comments and processing instructions don't contribute to the text.
+      }
+      if (depth == 0) {
+        return;
+      }
+    }
+  }
+
+  private static String qualifiedName(String prefix, String localName) {
+    return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+  }
+
+  // Read-only view of the attributes from position from up to to.
+  private class AttributeMap extends AbstractMap<String, String> {
+    private final int from;
+    private final int to;
+
+    AttributeMap(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+      return new AbstractSet<Entry<String, String>>() {
+        @Override
+        public Iterator<Entry<String, String>> iterator() {
+          return new Iterator<Entry<String, String>>() {
+            private int i = from;
+
+            @Override
+            public boolean hasNext() {
+              return i < to;
+            }
+
+            @Override
+            public Entry<String, String> next() {
+              if (i >= to) {
+                throw new NoSuchElementException();
+              }
+              Entry<String, String> entry = new SimpleImmutableEntry<>(attrNames[i], attrValues[i]);
+              i++;
+              return entry;
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          return to - from;
+        }
+      };
+    }
+  }
 }
@@ -2,6 +2,9 @@ package nl.knaw.huygens.pergamon.janus.xml;
 
 import nu.xom.Element;
 
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 /**
  * Converts XML to text-with-annotations. Uses UTF-16 offsets.
  * <p>
@@ -13,6 +16,14 @@ public class TaggedUtf16 extends TaggedText {
     super(doc);
   }
 
+  public TaggedUtf16(XMLStreamReader in, String id) throws XMLStreamException {
+    this(in, id, AnnotationIds.UUID);
+  }
+
+  public TaggedUtf16(XMLStreamReader in, String id, AnnotationIds ids) throws XMLStreamException {
+    super(in, id, ids);
+  }
+
   @Override
   protected void append(String s) {
     sb.append(s);
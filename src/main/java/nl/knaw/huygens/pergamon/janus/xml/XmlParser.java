@@ -4,7 +4,13 @@ import nu.xom.Builder;
 import nu.xom.Document;
 import nu.xom.ParsingException;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.StringReader;
 
 // Wraps thread-local nu.xom.Builders.
@@ -21,7 +27,39 @@ public class XmlParser {
       }
     };
 
+  // StAX factories need not be thread-safe, so we keep one per thread as well.
+  private static final ThreadLocal<XMLInputFactory> STAX =
+    new ThreadLocal<XMLInputFactory>() {
+      @Override
+      protected XMLInputFactory initialValue() {
+        XMLInputFactory factory = XMLInputFactory.newFactory();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+      }
+    };
+
   public static Document fromString(String s) throws IOException, ParsingException {
     return BUILDER.get().build(new StringReader(s));
   }
+
+  public static Document fromStream(InputStream in) throws IOException, ParsingException {
+    return BUILDER.get().build(in);
+  }
+
+  /**
+   * Returns a pull parser for the XML in in, positioned at the start of the document.
+   * <p>
+   * Unlike the other methods, this doesn't build a tree, so it can be used for documents
+   * that are too large to fit in memory.
+   */
+  public static XMLStreamReader streamFrom(InputStream in) throws XMLStreamException {
+    return STAX.get().createXMLStreamReader(in);
+  }
+
+  public static XMLStreamReader streamFrom(Reader in) throws XMLStreamException {
+    return STAX.get().createXMLStreamReader(in);
+  }
 }
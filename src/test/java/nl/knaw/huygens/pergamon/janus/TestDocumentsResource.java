@@ -0,0 +1,415 @@
+package nl.knaw.huygens.pergamon.janus;
+
+import com.google.common.io.ByteStreams;
+import nl.knaw.huygens.pergamon.janus.xml.AnnotationIds;
+import org.glassfish.jersey.server.CloseableService;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.Variant;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestDocumentsResource {
+  // Originals, one stored plain and one gzipped. They differ, or the store would share one file between them.
+  private static final String XML = document("doc");
+  private static final String GZIPPED_XML = document("gz");
+
+  private static String document(String root) {
+    StringBuilder sb = new StringBuilder("<").append(root).append(">");
+    for (int i = 0; i < 1000; i++) {
+      sb.append("<p>").append(i).append("</p>");
+    }
+    return sb.append("</").append(root).append(">").toString();
+  }
+
+  private static Path tmpdir;
+  private static OriginalStore store;
+  private static StubBackend backend;
+  private static DocumentsResource resource;
+
+  // Closes what the resource registered, as Jersey does when a request is done.
+  private final Closer closer = new Closer();
+
+  @BeforeClass
+  public static void setup() throws IOException, TimeoutException {
+    tmpdir = Files.createTempDirectory("janus-TestDocumentsResource");
+    store = new OriginalStore(tmpdir, 100);
+    backend = new StubBackend(store);
+    resource = new DocumentsResource(backend, null, new DocumentsResource.Config(), null);
+
+    OriginalStore.Config config = new OriginalStore.Config();
+    config.compression = OriginalStore.Compression.GZIP;
+    try (OriginalStore.WriteOp put = new OriginalStore(tmpdir, config).put("gz", GZIPPED_XML)) {
+      put.commit();
+    }
+    try (OriginalStore.WriteOp put = store.put("plain", XML)) {
+      put.commit();
+    }
+  }
+
+  @After
+  public void closeRequest() {
+    closer.close();
+  }
+
+  @AfterClass
+  public static void teardown() throws Exception {
+    backend.close();
+    Files.walk(tmpdir)
+         .sorted(Comparator.reverseOrder()) // parents first
+         .map(Path::toFile)
+         .forEach(File::delete);
+  }
+
+  // Serves a fixed list of annotations on document "doc", and originals from a real store.
+  // Nothing goes to Elasticsearch.
+  private static class StubBackend extends ElasticBackend {
+    final List<Annotation> annotations = asList(
+      new Annotation(0, 5, "doc", "p", null, "xml", "a1"),
+      new Annotation(0, 2, "doc", "b", null, "xml", "a2"),
+      new Annotation(3, 5, "doc", "i", "note", "user", "a3"));
+
+    StubBackend(OriginalStore originals) {
+      super(null, "docs", "doc", "annotations", "annotation", null, originals, AnnotationIds.UUID, 0,
+        ForkJoinPool.commonPool());
+    }
+
+    @Override
+    public Annotation getAnnotation(String id) {
+      return annotations.stream().filter(ann -> ann.id.equals(id)).findFirst().orElse(null);
+    }
+
+    @Override
+    public void forEachDocumentAnnotation(String id, @Nullable String q, boolean recursive, int limit,
+                                          @Nullable String after, Consumer<Annotation> sink) {
+      int from = after == null ? 0 : annotations.indexOf(getAnnotation(after)) + 1;
+      annotations.stream().skip(from).limit(limit).forEach(sink);
+    }
+  }
+
+  private static byte[] writeBytes(Response response) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ((StreamingOutput) response.getEntity()).write(out);
+    return out.toByteArray();
+  }
+
+  private static String write(Response response) throws IOException {
+    return new String(writeBytes(response), UTF_8);
+  }
+
+  private Response getOriginal(String id, String acceptEncoding, String range, String ifRange) throws IOException {
+    return resource.getOriginal(id, acceptEncoding, range, ifRange, new Unconditional(), closer);
+  }
+
+  @Test
+  public void original() throws Exception {
+    Response response = getOriginal("plain", null, null, null);
+    assertEquals(200, response.getStatus());
+    assertEquals(MediaType.APPLICATION_XML_TYPE, response.getMediaType());
+    assertEquals(String.valueOf(XML.length()), response.getHeaderString(HttpHeaders.CONTENT_LENGTH));
+    assertEquals("bytes", response.getHeaderString("Accept-Ranges"));
+    assertNull(response.getHeaderString(HttpHeaders.CONTENT_ENCODING));
+    assertEquals(XML, write(response));
+    // The entity can be written again, e.g., after a failed attempt.
+    assertEquals(XML, write(response));
+
+    response = getOriginal("plain", "gzip", "bytes=5-11", null);
+    assertEquals(206, response.getStatus());
+    assertEquals("bytes 5-11/" + XML.length(), response.getHeaderString("Content-Range"));
+    assertEquals("7", response.getHeaderString(HttpHeaders.CONTENT_LENGTH));
+    assertEquals(XML.substring(5, 12), write(response));
+
+    // The range is for a different version.
+    response = getOriginal("plain", null, "bytes=5-11", "\"other\"");
+    assertEquals(200, response.getStatus());
+    assertEquals(XML, write(response));
+
+    response = getOriginal("plain", null, "bytes=" + XML.length() + "-", null);
+    assertEquals(416, response.getStatus());
+    assertEquals("bytes */" + XML.length(), response.getHeaderString("Content-Range"));
+
+    assertEquals(404, getOriginal("nonexistent", null, null, null).getStatus());
+  }
+
+  @Test
+  public void gzippedOriginal() throws Exception {
+    byte[] stored = Files.readAllBytes(store.getPath("gz", OriginalStore.hash("gz")));
+    assertTrue(stored.length < GZIPPED_XML.length());
+
+    // Sent as stored.
+    Response response = getOriginal("gz", "gzip", null, null);
+    assertEquals(200, response.getStatus());
+    assertEquals(MediaType.APPLICATION_XML_TYPE, response.getMediaType());
+    assertEquals("gzip", response.getHeaderString(HttpHeaders.CONTENT_ENCODING));
+    assertEquals(HttpHeaders.ACCEPT_ENCODING, response.getHeaderString(HttpHeaders.VARY));
+    assertEquals(String.valueOf(stored.length), response.getHeaderString(HttpHeaders.CONTENT_LENGTH));
+    byte[] body = writeBytes(response);
+    assertArrayEquals(stored, body);
+    InputStream decompressed = new GZIPInputStream(new ByteArrayInputStream(body));
+    assertEquals(GZIPPED_XML, new String(ByteStreams.toByteArray(decompressed), UTF_8));
+
+    // Ranges are of the stored bytes.
+    response = getOriginal("gz", "gzip", "bytes=-10", null);
+    assertEquals(206, response.getStatus());
+    assertEquals("gzip", response.getHeaderString(HttpHeaders.CONTENT_ENCODING));
+    assertEquals(String.format("bytes %d-%d/%d", stored.length - 10, stored.length - 1, stored.length),
+      response.getHeaderString("Content-Range"));
+    assertArrayEquals(Arrays.copyOfRange(stored, stored.length - 10, stored.length), writeBytes(response));
+
+    // Decompressed for clients that don't accept gzip, without a length or ranges.
+    String etag = response.getEntityTag().getValue();
+    response = getOriginal("gz", "identity", "bytes=0-9", null);
+    assertEquals(200, response.getStatus());
+    assertEquals(MediaType.APPLICATION_XML_TYPE, response.getMediaType());
+    assertNull(response.getHeaderString(HttpHeaders.CONTENT_ENCODING));
+    assertNull(response.getHeaderString(HttpHeaders.CONTENT_LENGTH));
+    assertEquals(HttpHeaders.ACCEPT_ENCODING, response.getHeaderString(HttpHeaders.VARY));
+    assertEquals(etag + "-identity", response.getEntityTag().getValue());
+    assertEquals(GZIPPED_XML, write(response));
+  }
+
+  @Test
+  public void ndjson() throws Exception {
+    String a1 = "{\"id\":\"a1\",\"start\":0,\"end\":5,\"type\":\"p\",\"target\":\"doc\",\"source\":\"xml\"}\n";
+    String a2 = "{\"id\":\"a2\",\"start\":0,\"end\":2,\"type\":\"b\",\"target\":\"doc\",\"source\":\"xml\"}\n";
+    String a3 = "{\"id\":\"a3\",\"start\":3,\"end\":5,\"body\":\"note\",\"type\":\"i\",\"target\":\"doc\"," +
+      "\"source\":\"user\"}\n";
+
+    assertEquals(a1 + a2 + a3, write(resource.streamAnnotations("doc", true, null, null, null)));
+    assertEquals(a1 + a2, write(resource.streamAnnotations("doc", true, null, 2, null)));
+    assertEquals(a2 + a3, write(resource.streamAnnotations("doc", true, null, null, "a1")));
+    assertEquals(a3, write(resource.streamAnnotations("doc", true, null, 1, "a2")));
+    assertEquals("", write(resource.streamAnnotations("doc", true, null, null, "a3")));
+
+    assertEquals(400, resource.streamAnnotations("doc", true, null, null, "nonexistent").getStatus());
+  }
+
+  @Test
+  public void jsonArrayStream() throws Exception {
+    String a1 = "{\"id\":\"a1\",\"start\":0,\"end\":5,\"type\":\"p\",\"target\":\"doc\",\"source\":\"xml\"}";
+    String a2 = "{\"id\":\"a2\",\"start\":0,\"end\":2,\"type\":\"b\",\"target\":\"doc\",\"source\":\"xml\"}";
+    String a3 = "{\"id\":\"a3\",\"start\":3,\"end\":5,\"body\":\"note\",\"type\":\"i\",\"target\":\"doc\"," +
+      "\"source\":\"user\"}";
+
+    assertEquals("[" + a1 + "," + a2 + "," + a3 + "]", write(getAnnotations(null)));
+    assertEquals("[" + a2 + "," + a3 + "]", write(getAnnotations("a1")));
+    assertEquals("[]", write(getAnnotations("a3")));
+    assertEquals(400, getAnnotations("nonexistent").getStatus());
+  }
+
+  // Calls getAnnotations without limit, so that it streams, and returns the response it resumes with.
+  private static Response getAnnotations(String after) {
+    Resumed async = new Resumed();
+    resource.getAnnotations("doc", true, null, null, after, null, async);
+    return (Response) async.response;
+  }
+
+  // AsyncResponse that records what it is resumed with.
+  private static class Resumed implements AsyncResponse {
+    Object response;
+
+    @Override
+    public boolean resume(Object response) {
+      this.response = response;
+      return true;
+    }
+
+    @Override
+    public boolean resume(Throwable response) {
+      throw new AssertionError(response);
+    }
+
+    @Override
+    public boolean cancel() {
+      return false;
+    }
+
+    @Override
+    public boolean cancel(int retryAfter) {
+      return false;
+    }
+
+    @Override
+    public boolean cancel(Date retryAfter) {
+      return false;
+    }
+
+    @Override
+    public boolean isSuspended() {
+      return response == null;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return response != null;
+    }
+
+    @Override
+    public boolean setTimeout(long time, TimeUnit unit) {
+      return true;
+    }
+
+    @Override
+    public void setTimeoutHandler(TimeoutHandler handler) {
+    }
+
+    @Override
+    public Collection<Class<?>> register(Class<?> callback) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Collection<Class<?>> register(Object callback) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+      throw new UnsupportedOperationException();
+    }
+  }
+  @Test
+  public void byteRange() {
+    assertArrayEquals(new long[]{0, 10}, DocumentsResource.byteRange("bytes=0-9", 100));
+    assertArrayEquals(new long[]{90, 100}, DocumentsResource.byteRange("bytes=90-", 100));
+    assertArrayEquals(new long[]{90, 100}, DocumentsResource.byteRange("bytes=-10", 100));
+    assertArrayEquals(new long[]{0, 100}, DocumentsResource.byteRange("bytes=-1000", 100));
+    assertArrayEquals(new long[]{50, 100}, DocumentsResource.byteRange("bytes=50-1000", 100));
+
+    // Not satisfiable.
+    assertArrayEquals(new long[0], DocumentsResource.byteRange("bytes=100-", 100));
+    assertArrayEquals(new long[0], DocumentsResource.byteRange("bytes=-0", 100));
+
+    // Ignored.
+    assertNull(DocumentsResource.byteRange("bytes=9-0", 100));
+    assertNull(DocumentsResource.byteRange("bytes=-", 100));
+    assertNull(DocumentsResource.byteRange("bytes=0-1,5-6", 100));
+    assertNull(DocumentsResource.byteRange("lines=0-1", 100));
+    assertNull(DocumentsResource.byteRange("bytes=99999999999999999999-", 100));
+  }
+
+  @Test
+  public void mediaType() throws Exception {
+    assertEquals(MediaType.APPLICATION_XML_TYPE, mediaType("\uFEFF\n<doc/>"));
+    assertEquals(MediaType.APPLICATION_JSON_TYPE.withCharset("UTF-8"), mediaType(" {\"body\": \"x\"}"));
+    assertEquals(MediaType.TEXT_PLAIN_TYPE.withCharset("UTF-8"), mediaType("hello"));
+    assertEquals(MediaType.TEXT_PLAIN_TYPE.withCharset("UTF-8"), mediaType(""));
+  }
+
+  private static MediaType mediaType(String content) throws Exception {
+    return DocumentsResource.mediaType(new ByteArrayInputStream(content.getBytes(UTF_8)));
+  }
+
+  @Test
+  public void acceptsGzip() {
+    assertTrue(DocumentsResource.acceptsGzip("gzip, deflate"));
+    assertTrue(DocumentsResource.acceptsGzip("deflate, GZIP;q=0.5"));
+    assertTrue(DocumentsResource.acceptsGzip("*"));
+    assertFalse(DocumentsResource.acceptsGzip(null));
+    assertFalse(DocumentsResource.acceptsGzip("identity"));
+    assertFalse(DocumentsResource.acceptsGzip("gzip;q=0, identity"));
+  }
+
+  // Request without conditional headers.
+  private static class Unconditional implements Request {
+    @Override
+    public String getMethod() {
+      return "GET";
+    }
+
+    @Override
+    public Variant selectVariant(List<Variant> variants) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response.ResponseBuilder evaluatePreconditions(EntityTag eTag) {
+      return null;
+    }
+
+    @Override
+    public Response.ResponseBuilder evaluatePreconditions(Date lastModified) {
+      return null;
+    }
+
+    @Override
+    public Response.ResponseBuilder evaluatePreconditions(Date lastModified, EntityTag eTag) {
+      return null;
+    }
+
+    @Override
+    public Response.ResponseBuilder evaluatePreconditions() {
+      return null;
+    }
+  }
+
+  private static class Closer implements CloseableService {
+    private final List<Closeable> closeables = new ArrayList<>();
+
+    @Override
+    public boolean add(Closeable closeable) {
+      return closeables.add(closeable);
+    }
+
+    @Override
+    public void close() {
+      for (Closeable closeable : closeables) {
+        try {
+          closeable.close();
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      closeables.clear();
+    }
+  }
+}
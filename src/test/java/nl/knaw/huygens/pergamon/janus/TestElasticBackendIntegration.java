@@ -2,9 +2,14 @@ package nl.knaw.huygens.pergamon.janus;
 
 import com.google.common.collect.ImmutableMap;
 import io.dropwizard.jackson.Jackson;
+import nl.knaw.huygens.pergamon.janus.xml.AnnotationIds;
+import org.apache.http.HttpHost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.elasticsearch.ElasticsearchStatusException;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestClient;
 import org.elasticsearch.index.query.TermQueryBuilder;
 import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
@@ -20,18 +25,27 @@ import java.net.ConnectException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeoutException;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyMap;
+import static java.util.Collections.singletonList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeTrue;
 
 public class TestElasticBackendIntegration {
@@ -41,6 +55,7 @@ public class TestElasticBackendIntegration {
   private static final String DOC_TYPE = "janus_test_doc";
 
   private static boolean available = true;
+  private static Mapping mapping;
   private static ElasticBackend backend;
 
   private static Path tempDir;
@@ -49,7 +64,7 @@ public class TestElasticBackendIntegration {
   public static void connect() throws IOException {
     try {
       tempDir = Files.createTempDirectory("TestElasticBackendIntegration");
-      Mapping mapping = new Mapping(asList(
+      mapping = new Mapping(asList(
         new Mapping.Field("body", "text", "/"),
         new Mapping.Field("author", "keyword", "//author"),
         new Mapping.Field("receiver", "keyword", "//receiver")
@@ -187,6 +202,80 @@ public class TestElasticBackendIntegration {
 
     retry(() -> assertEquals(ann1, backend.getAnnotation(ann1.id)));
     retry(() -> assertEquals(ann2, backend.getAnnotation(ann2.id)));
+
+    Annotation ann3 = new Annotation(0, 0, ann2.id, "level3", null, "test", null);
+    ann3.id = backend.putAnnotation(ann3).id;
+    Annotation ann2b = new Annotation(1, 1, ann1.id, "level2", null, "test", null);
+    ann2b.id = backend.putAnnotation(ann2b).id;
+
+    // Level by level.
+    retry(() -> {
+      List<Annotation> anns = backend.getAnnotations(ann1.id, null, true);
+      assertEquals(3, anns.size());
+      assertEquals("level2", anns.get(0).type);
+      assertEquals("level2", anns.get(1).type);
+      assertEquals(ann3, anns.get(2));
+    });
+  }
+
+  @Test
+  public void async() throws Exception {
+    String docId = backend.putTxt(null, "async doc").id;
+    ElasticBackend.PutResult result = backend.putAnnotationAsync(docId,
+      new Annotation(0, 5, docId, "note", null, "test", null)).get();
+    assertEquals(201, result.status);
+
+    retry(() -> {
+      DocAndAnnotations doc = backend.getWithAnnotationsAsync(docId, true).get();
+      assertEquals(1, doc.annotations.size());
+      assertEquals(doc.annotations, backend.getWithAnnotations(docId, true).annotations);
+      assertEquals(doc.annotations.get(0), backend.getAnnotationAsync(result.id).get());
+    });
+    assertNull(backend.getWithAnnotationsAsync("nothing-here", true).get());
+    assertNull(backend.getAnnotationAsync("nothing-here").get());
+    assertEquals(404, backend.putAnnotationAsync(null,
+      new Annotation(0, 0, "nothing-here", "note", null, "test", null)).get().status);
+  }
+
+  @Test
+  public void batched() throws Exception {
+    String doc1 = backend.putTxt(null, "first doc").id;
+    String doc2 = backend.putTxt(null, "second doc").id;
+    Annotation ann = new Annotation(0, 5, doc1, "note", null, "test", null);
+    String annId = backend.putAnnotation(ann).id;
+
+    Map<String, Map<String, Object>> docs = backend.findDocuments(asList(doc1, doc2, "nothing-here"));
+    assertEquals(2, docs.size());
+    assertEquals("second doc", docs.get(doc2).get("body"));
+    assertEquals(emptyMap(), backend.findDocuments(asList(doc2, "nothing-here"), Collections.emptySet()).get(doc2));
+    assertEquals(1, backend.findDocuments(asList(doc2, "nothing-here"), Collections.emptySet()).size());
+
+    retry(() -> {
+      Map<String, List<Annotation>> on = backend.getAnnotationsOn(asList(doc1, doc2));
+      assertEquals(1, on.get(doc1).size());
+      assertEquals(annId, on.get(doc1).get(0).id);
+      assertEquals(Collections.emptyList(), on.get(doc2));
+    });
+  }
+
+  @Test
+  public void annotationCache() throws Exception {
+    try (ElasticBackend cached = new ElasticBackend(Collections.emptyList(), DOC_INDEX, DOC_TYPE, ANN_INDEX, ANN_TYPE,
+      mapping, new OriginalStore(tempDir, 200), AnnotationIds.UUID, 1 << 20, ForkJoinPool.commonPool())) {
+      String docId = cached.putXml(null, "<doc><p>cached</p></doc>").id;
+      retry(() -> assertEquals(2, cached.getWithAnnotations(docId, true).annotations.size()));
+
+      Annotation ann = new Annotation(0, 6, docId, "note", null, "test", null);
+      assertEquals(201, cached.putAnnotation(ann).status);
+      retry(() -> {
+        assertEquals(3, cached.getWithAnnotations(docId, true).annotations.size());
+        assertEquals(3, cached.getDocumentAnnotations(docId, null, false, Integer.MAX_VALUE, null).size());
+      });
+
+      assertEquals(200, cached.delete(docId).getStatus());
+      retry(() -> assertEquals(0,
+        cached.getDocumentAnnotations(docId, null, true, Integer.MAX_VALUE, null).size()));
+    }
   }
 
   @Test
@@ -325,6 +414,263 @@ public class TestElasticBackendIntegration {
     }
   }
 
+  @Test
+  public void updateXmlKeepsIds() throws Exception {
+    String docId = "incremental";
+    assertEquals(201, backend.putXml(docId, "<body><p>hello</p><i>x</i><p>world</p></body>").status);
+    List<Annotation> before = retry(() -> {
+      List<Annotation> anns = backend.getDocumentAnnotations(docId, null, false, Integer.MAX_VALUE, null);
+      assertEquals(4, anns.size());
+      return anns;
+    });
+
+    // An annotation on the second paragraph should survive the update.
+    Annotation note = new Annotation(0, 5, before.get(3).id, "note", null, "test", null);
+    note.id = backend.putAnnotation(note).id;
+    // The annotation on the removed tag shouldn't.
+    Annotation gone = new Annotation(0, 1, before.get(2).id, "note", null, "test", null);
+    gone.id = backend.putAnnotation(gone).id;
+    retry(() -> assertNotNull(backend.getAnnotation(gone.id)));
+
+    assertEquals(201, backend.updateXml(docId, "<body><p>hello, </p><p>world</p></body>").status);
+    retry(() -> {
+      List<Annotation> after = backend.getDocumentAnnotations(docId, null, false, Integer.MAX_VALUE, null);
+      assertEquals(3, after.size());
+      assertEquals(before.get(0).id, after.get(0).id);
+      assertEquals(before.get(1).id, after.get(1).id);
+      assertEquals(before.get(3).id, after.get(2).id);
+      assertEquals(7, after.get(2).start);
+      assertEquals(12, after.get(2).end);
+      assertNull(backend.getAnnotation(before.get(2).id));
+      assertNull(backend.getAnnotation(gone.id));
+    });
+    assertEquals(note, backend.getAnnotation(note.id));
+  }
+
+  @Test
+  public void bulkIngest() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      BulkIngest.Config config = new BulkIngest.Config();
+      config.maxBulkActions = 3; // Force multiple bulk requests.
+      // Entries of a session are ingested concurrently, so the existing document is made beforehand:
+      // two entries with the same id would race for it.
+      assertEquals(201, backend.putXml("bulk0", "<letter/>").status);
+
+      BulkIngest.Session session = new BulkIngest(backend, executor, config).start();
+      session.add("bulk1", "<letter><author>me</author><p>hello</p></letter>".getBytes(UTF_8));
+      session.add("bulk2", "<letter><p>world</p>".getBytes(UTF_8));
+      session.add("bulk3", "<letter><author>you</author><p>goodbye</p></letter>".getBytes(UTF_8));
+      session.add("bulk0", "<letter><p>again</p></letter>".getBytes(UTF_8));
+      List<ElasticBackend.PutResult> results = session.finish();
+
+      assertEquals(4, results.size());
+      assertEquals(201, results.get(0).status);
+      assertEquals(400, results.get(1).status);
+      assertEquals(201, results.get(2).status);
+      assertEquals(409, results.get(3).status);
+      assertEquals("<letter><author>you</author><p>goodbye</p></letter>", backend.getOriginal("bulk3"));
+      assertEquals("<letter/>", backend.getOriginal("bulk0"));
+
+      retry(() -> {
+        DocAndAnnotations doc = backend.getWithAnnotations("bulk3", false);
+        assertNotNull(doc);
+        assertEquals(3, doc.annotations.size());
+      });
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void bulkIngestRetry() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    String xml = "<letter><p>retried</p></letter>";
+    try (RestClient es = RestClient.builder(new HttpHost("localhost", 9200)).build()) {
+      BulkIngest bulk = new BulkIngest(backend, executor, new BulkIngest.Config());
+
+      // Tags can't be indexed, so the document fails, but only after its original was stored.
+      setWriteBlock(es, true);
+      List<ElasticBackend.PutResult> results;
+      try {
+        BulkIngest.Session session = bulk.start();
+        session.add("bulkretry", xml.getBytes(UTF_8));
+        results = session.finish();
+      } finally {
+        setWriteBlock(es, false);
+      }
+      assertEquals(1, results.size());
+      assertNotEquals(201, results.get(0).status);
+      try {
+        backend.getOriginal("bulkretry");
+        fail("original of failed document was kept");
+      } catch (NoSuchFileException e) {
+        // Removed, as it should be.
+      }
+      assertNull(backend.getWithAnnotations("bulkretry", false));
+
+      BulkIngest.Session session = bulk.start();
+      session.add("bulkretry", xml.getBytes(UTF_8));
+      assertEquals(201, session.finish().get(0).status);
+      assertEquals(xml, backend.getOriginal("bulkretry"));
+      retry(() -> assertEquals(2, backend.getWithAnnotations("bulkretry", false).annotations.size()));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static void setWriteBlock(RestClient es, boolean block) throws IOException {
+    es.performRequest("PUT", "/" + ANN_INDEX + "/_settings", emptyMap(),
+      new StringEntity("{\"index.blocks.write\": " + block + "}", ContentType.APPLICATION_JSON));
+  }
+
+  @Test
+  public void manyAnnotations() throws Exception {
+    // More tags than fit in a single page of search results.
+    StringBuilder xml = new StringBuilder("<doc>");
+    for (int i = 0; i < 2500; i++) {
+      xml.append("<w>").append(i).append("</w> ");
+    }
+    String id = putXml(xml.append("</doc>").toString());
+
+    List<Annotation> all = retry(() -> {
+      List<Annotation> anns = backend.getDocumentAnnotations(id, null, false, Integer.MAX_VALUE, null);
+      assertEquals(2501, anns.size());
+      return anns;
+    });
+    assertEquals("doc", all.get(0).type);
+    assertEquals(all.size(), backend.getWithAnnotations(id, true).annotations.size());
+
+    List<Annotation> page = backend.getDocumentAnnotations(id, null, false, 1000, all.get(1499).id);
+    assertEquals(1000, page.size());
+    assertEquals(all.get(1500).id, page.get(0).id);
+    assertEquals(all.get(2499).id, page.get(999).id);
+
+    // Streaming goes through the same pages, without the cache.
+    List<Annotation> streamed = new ArrayList<>();
+    backend.forEachDocumentAnnotation(id, null, false, Integer.MAX_VALUE, null, streamed::add);
+    assertEquals(all, streamed);
+
+    streamed.clear();
+    backend.forEachDocumentAnnotation(id, null, false, 1200, all.get(499).id, streamed::add);
+    assertEquals(all.subList(500, 1700), streamed);
+
+    streamed.clear();
+    backend.forEachDocumentAnnotation(id, null, false, Integer.MAX_VALUE, all.get(2499).id, streamed::add);
+    assertEquals(singletonList(all.get(2500)), streamed);
+  }
+
+  // A document of n words, each in its own tag.
+  private static String words(int n, String word) {
+    StringBuilder xml = new StringBuilder("<doc>");
+    for (int i = 0; i < n; i++) {
+      xml.append("<w>").append(word).append(i).append("</w> ");
+    }
+    return xml.append("</doc>").toString();
+  }
+
+  // Number of annotations with the given root, as Elasticsearch sees them.
+  private static long annotationsUnder(String root) throws IOException {
+    return backend.hiClient.search(new SearchRequest(ANN_INDEX)
+      .types(ANN_TYPE).source(SearchSourceBuilder.searchSource()
+                                                 .query(new TermQueryBuilder("root", root)).size(0)))
+                           .getHits().getTotalHits();
+  }
+
+  @Test
+  public void deleteManyAnnotations() throws Exception {
+    String id = putXml(words(2500, "w"));
+    Annotation note = new Annotation(0, 2, id, "note", null, "test", null);
+    assertEquals(201, backend.putAnnotation(note).status);
+    retry(() -> assertEquals(2502, annotationsUnder(id)));
+
+    assertEquals(200, backend.delete(id).getStatus());
+    retry(() -> {
+      assertEquals(0, annotationsUnder(id));
+      assertEquals(0, backend.getDocumentAnnotations(id, null, true, Integer.MAX_VALUE, null).size());
+    });
+  }
+
+  @Test
+  public void updateManyAnnotations() throws Exception {
+    String id = putXml(words(2500, "w"));
+    retry(() -> assertEquals(2501, annotationsUnder(id)));
+
+    assertEquals(201, backend.updateXml(id, words(1200, "v")).status);
+    retry(() -> {
+      assertEquals(1201, annotationsUnder(id));
+      List<Annotation> anns = backend.getDocumentAnnotations(id, null, false, Integer.MAX_VALUE, null);
+      assertEquals(1201, anns.size());
+      assertEquals("doc", anns.get(0).type);
+      assertTrue(anns.subList(1, anns.size()).stream().allMatch(ann -> ann.type.equals("w")));
+    });
+  }
+
+  @Test
+  public void deleteTagsSequential() throws Exception {
+    try (ElasticBackend sequential = new ElasticBackend(Collections.emptyList(), DOC_INDEX, DOC_TYPE, ANN_INDEX,
+      ANN_TYPE, mapping, new OriginalStore(tempDir, 200), AnnotationIds.SEQUENTIAL, 0, ForkJoinPool.commonPool())) {
+      String id = "sequential";
+      assertEquals(201, sequential.putXml(id, words(2500, "w")).status);
+      Annotation note = new Annotation(0, 2, id, "note", null, "test", null);
+      note.id = sequential.putAnnotation(note).id;
+      retry(() -> assertEquals(2502, annotationsUnder(id)));
+
+      // Tags 0 to 1500 are overwritten in place; only those from 1501 onwards are deleted.
+      assertEquals(201, sequential.updateXml(id, words(1500, "v")).status);
+      retry(() -> {
+        assertEquals(1502, annotationsUnder(id));
+        List<Annotation> anns = sequential.getDocumentAnnotations(id, null, false, Integer.MAX_VALUE, null);
+        for (int i = 0; i <= 1500; i++) {
+          assertEquals(id + ":" + i, anns.get(i).id);
+        }
+        assertEquals(note, anns.get(1501));
+      });
+    }
+  }
+
+  @Test
+  public void switchToSequentialIds() throws Exception {
+    String id = "uuidera";
+    assertEquals(201, backend.putXml(id, "<doc><p>a</p><p>b</p><p>c</p></doc>").status);
+    List<Annotation> old = retry(() -> {
+      List<Annotation> anns = backend.getDocumentAnnotations(id, null, false, Integer.MAX_VALUE, null);
+      assertEquals(4, anns.size());
+      return anns;
+    });
+    Annotation note = new Annotation(0, 1, old.get(2).id, "note", null, "test", null);
+    note.id = backend.putAnnotation(note).id;
+    retry(() -> assertEquals(5, annotationsUnder(id)));
+
+    try (ElasticBackend sequential = new ElasticBackend(Collections.emptyList(), DOC_INDEX, DOC_TYPE, ANN_INDEX,
+      ANN_TYPE, mapping, new OriginalStore(tempDir, 200), AnnotationIds.SEQUENTIAL, 0, ForkJoinPool.commonPool())) {
+      // The old tags keep their ids, so the note stays on its tag; only the new tag gets a sequential id.
+      assertEquals(201, sequential.updateXml(id, "<doc><p>a</p><p>b</p><p>c</p><p>d</p></doc>").status);
+      retry(() -> {
+        assertEquals(6, annotationsUnder(id));
+        List<Annotation> anns = sequential.getDocumentAnnotations(id, null, false, Integer.MAX_VALUE, null);
+        assertEquals(5, anns.size());
+        for (int i = 0; i < old.size(); i++) {
+          assertEquals(old.get(i).id, anns.get(i).id);
+        }
+        assertEquals(id + ":4", anns.get(4).id);
+        assertEquals(note, sequential.getAnnotation(note.id));
+      });
+
+      // Still a mix of ids, so no tags are left behind when the document shrinks.
+      assertEquals(201, sequential.updateXml(id, "<doc><p>a</p><p>c</p></doc>").status);
+      retry(() -> {
+        List<Annotation> anns = sequential.getDocumentAnnotations(id, null, false, Integer.MAX_VALUE, null);
+        assertEquals(3, anns.size());
+        for (int i = 0; i < anns.size(); i++) {
+          assertEquals(old.get(i).id, anns.get(i).id);
+        }
+        assertEquals(4, annotationsUnder(id));
+        assertEquals(note, sequential.getAnnotation(note.id));
+      });
+    }
+  }
+
   private String putXml(String xml) throws IOException {
     ElasticBackend.PutResult result = backend.putXml(null, xml);
     assertEquals(result.message, 201, result.status);
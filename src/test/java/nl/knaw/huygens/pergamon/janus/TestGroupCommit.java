@@ -0,0 +1,93 @@
+package nl.knaw.huygens.pergamon.janus;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestGroupCommit {
+  private static final int CALLERS = 32;
+
+  private static List<Future<Void>> run(GroupCommit commit, int callers) throws InterruptedException {
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for (int i = 0; i < callers; i++) {
+      Path path = Paths.get("file" + i);
+      tasks.add(() -> {
+        commit.sync(Collections.singleton(path));
+        return null;
+      });
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(callers);
+    try {
+      return pool.invokeAll(tasks);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void sharesSyncs() throws Exception {
+    Set<Path> synced = ConcurrentHashMap.newKeySet();
+    // Paths are synced by the leader of their group.
+    Set<Thread> leaders = ConcurrentHashMap.newKeySet();
+    GroupCommit commit = new GroupCommit(50, MILLISECONDS, 8, path -> {
+      synced.add(path);
+      leaders.add(Thread.currentThread());
+    });
+
+    for (Future<Void> f : run(commit, CALLERS)) {
+      f.get();
+    }
+    assertEquals(CALLERS, synced.size());
+    for (int i = 0; i < CALLERS; i++) {
+      assertTrue(synced.contains(Paths.get("file" + i)));
+    }
+    assertTrue(leaders.size() < CALLERS);
+  }
+
+  @Test
+  public void fullGroup() throws Exception {
+    AtomicInteger syncs = new AtomicInteger();
+    // With this interval, groups only close because they are full.
+    GroupCommit commit = new GroupCommit(1, HOURS, 4, path -> syncs.incrementAndGet());
+
+    for (Future<Void> f : run(commit, 8)) {
+      f.get();
+    }
+    assertEquals(8, syncs.get());
+  }
+
+  @Test
+  public void error() throws Exception {
+    GroupCommit commit = new GroupCommit(20, MILLISECONDS, CALLERS, path -> {
+      throw new IOException("disk on fire");
+    });
+
+    for (Future<Void> f : run(commit, 4)) {
+      try {
+        f.get();
+        fail("expected an IOException");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof IOException);
+      }
+    }
+  }
+}
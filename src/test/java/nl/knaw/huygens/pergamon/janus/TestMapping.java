@@ -1,15 +1,23 @@
 package nl.knaw.huygens.pergamon.janus;
 
 import io.dropwizard.jackson.Jackson;
+import nl.knaw.huygens.pergamon.janus.xml.TaggedCodepoints;
+import nl.knaw.huygens.pergamon.janus.xml.TaggedText;
 import nl.knaw.huygens.pergamon.janus.xml.XmlParser;
 import nu.xom.Document;
 import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.Nodes;
 import nu.xom.ParsingException;
+import nu.xom.XPathContext;
 import nu.xom.XPathException;
 import org.apache.commons.lang3.tuple.Triple;
 import org.junit.Test;
 
+import javax.xml.stream.XMLStreamException;
+
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -18,6 +26,10 @@ import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class TestMapping {
   @Test
@@ -70,6 +82,93 @@ public class TestMapping {
     assertEquals("ok", r.getMiddle().getValue());
   }
 
+  @Test
+  public void streaming() throws IOException, ParsingException, XMLStreamException {
+    Mapping mapping = new Mapping(asList(
+      new Mapping.Field("body", "text", "/doc/foo:body"),
+      new Mapping.Field("title", "text", "/doc/title"),
+      new Mapping.Field("author", "keyword", "/doc/@author"),
+      new Mapping.Field("lang", "keyword", "/doc/foo:body/@xml:lang")
+    ), asList(
+      new Mapping.Namespace("foo", "http://example.com/foo"),
+      new Mapping.Namespace("xml", "http://www.w3.org/XML/1998/namespace")
+    ), true);
+    assertTrue(mapping.streamable());
+
+    String xml = ("<doc author=`me` xmlns:f=`http://example.com/foo`>" +
+      "<f:body xml:lang=`en`>some <i>text</i></f:body><title>The <b>title</b></title></doc>").replace('`', '"');
+
+    Triple<String, TaggedText, Map<String, String>> streamed =
+      mapping.apply(XmlParser.streamFrom(new StringReader(xml)), in -> new TaggedCodepoints(in, null));
+    Triple<String, Element, Map<String, String>> parsed = mapping.apply(XmlParser.fromString(xml));
+
+    assertEquals("body", streamed.getLeft());
+    assertEquals(parsed.getMiddle().getValue(), streamed.getMiddle().text());
+    assertEquals(2, streamed.getMiddle().tags().size());
+    assertEquals(parsed.getRight(), streamed.getRight());
+    assertEquals("The title", streamed.getRight().get("title"));
+    assertEquals("en", streamed.getRight().get("lang"));
+  }
+
+  @Test
+  public void simplePaths() throws IOException, ParsingException {
+    XPathContext ctx = new XPathContext("f", "http://example.com/foo");
+    Document doc = XmlParser.fromString(("<doc n=`0` xmlns:f=`http://example.com/foo`>" +
+      "<a n=`1`/><a n=`2`><b n=`3`/><b n=`4`>x</b></a><a><b n=`5`/></a>" +
+      "<f:a n=`6`><f:b>y</f:b></f:a><c xmlns=`http://example.com/foo` n=`7`/></doc>")
+      .replace('`', '"'));
+
+    for (String xpath : asList("/", "/doc", "/doc/@n", "/doc/a", "/doc/a/@n", "/doc/a/b", "/doc/a/b/@n",
+      "/doc/a/b/@m", "/doc/f:a/f:b", "/doc/f:a/@n", "/doc/c", "/doc/f:c/@n", "/other", "/doc/a/b/c")) {
+      Mapping.SimplePath path = Mapping.SimplePath.parse(xpath, ctx);
+      Nodes expected = doc.query(xpath, ctx);
+      Node got = path.select(doc);
+      if (expected.size() == 0) {
+        assertNull(xpath, got);
+      } else if (expected.get(0) instanceof Document) {
+        assertSame(xpath, doc.getRootElement(), got);
+      } else {
+        assertSame(xpath, expected.get(0), got);
+      }
+    }
+
+    assertNull(Mapping.SimplePath.parse("/@n", ctx));
+    assertNull(Mapping.SimplePath.parse("/doc/a[2]", ctx));
+    assertNull(Mapping.SimplePath.parse("/doc/g:a", ctx));
+  }
+
+  @Test
+  public void mixedPaths() throws IOException, ParsingException {
+    Mapping mapping = new Mapping(asList(
+      new Mapping.Field("body", "text", "/doc/body"),
+      new Mapping.Field("title", "text", "/doc/title"),
+      new Mapping.Field("second", "text", "/doc/title[2]")
+    ), true);
+    assertFalse(mapping.streamable());
+
+    Triple<String, Element, Map<String, String>> r = mapping.apply(XmlParser.fromString(
+      "<doc><title>one</title><body>text</body><title>two</title></doc>"));
+    assertEquals("text", r.getMiddle().getValue());
+    assertEquals("one", r.getRight().get("title"));
+    assertEquals("two", r.getRight().get("second"));
+  }
+
+  @Test
+  public void notStreamable() {
+    // Not simple paths.
+    assertFalse(new Mapping(asList(new Mapping.Field("body", "text", "//body")), true).streamable());
+    assertFalse(new Mapping(asList(
+      new Mapping.Field("body", "text", "/doc/body"),
+      new Mapping.Field("title", "text", "/doc/title[1]")
+    ), true).streamable());
+    // Field inside body.
+    assertFalse(new Mapping(asList(
+      new Mapping.Field("body", "text", "/"),
+      new Mapping.Field("author", "text", "/doc/author")
+    ), true).streamable());
+    assertTrue(new Mapping(asList(new Mapping.Field("body", "text", "/")), true).streamable());
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void duplicateField() {
     new Mapping(asList(
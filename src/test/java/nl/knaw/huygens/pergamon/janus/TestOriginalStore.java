@@ -1,18 +1,39 @@
 package nl.knaw.huygens.pergamon.janus;
 
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.io.ByteStreams;
+import io.dropwizard.util.Duration;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
 public class TestOriginalStore {
   private static OriginalStore store = null;
@@ -55,4 +76,258 @@ public class TestOriginalStore {
     }
     assertEquals("goodbye!", new String(store.get("hello")));
   }
+
+  @Test
+  public void conditionalDelete() throws IOException, TimeoutException {
+    try (OriginalStore.WriteOp put = store.put("deleted", "mine")) {
+      put.commit();
+    }
+    try (OriginalStore.WriteOp delete = store.delete("deleted", "theirs".getBytes(UTF_8))) {
+      assertTrue(delete.noop());
+    }
+    try (OriginalStore.WriteOp delete = store.delete("deleted", "mine".getBytes(UTF_8))) {
+      assertFalse(delete.noop());
+      delete.commit();
+    }
+    try (OriginalStore.WriteOp delete = store.delete("deleted", "mine".getBytes(UTF_8))) {
+      assertTrue(delete.noop());
+    }
+  }
+
+  @Test
+  public void upload() throws IOException, TimeoutException {
+    byte[] content = "<doc>uploaded</doc>".getBytes(UTF_8);
+
+    try (OriginalStore.Upload up = store.replace("upload", new ByteArrayInputStream(content))) {
+      // Read only part of the content; the rest must still be stored.
+      byte[] head = new byte[5];
+      assertEquals(5, up.input().read(head));
+      assertEquals("<doc>", new String(head, UTF_8));
+      assertFalse(up.noop());
+      up.commit();
+    }
+    assertArrayEquals(content, store.get("upload"));
+
+    try (OriginalStore.Upload up = store.replace("upload", new ByteArrayInputStream(content))) {
+      assertTrue(up.noop());
+    }
+
+    // An upload that isn't committed leaves no trace.
+    try (OriginalStore.Upload up = store.replace("upload", new ByteArrayInputStream("other".getBytes(UTF_8)))) {
+      assertFalse(up.noop());
+    }
+    assertArrayEquals(content, store.get("upload"));
+    try (Stream<Path> files = Files.list(store.getPath("upload", OriginalStore.hash("upload")).getParent())) {
+      assertEquals(1, files.count());
+    }
+  }
+
+  @Test
+  public void open() throws Exception {
+    try (OriginalStore.WriteOp put = store.put("opened", "version 1")) {
+      put.commit();
+    }
+    try (OriginalStore.Original orig = store.open("opened")) {
+      assertEquals(9, orig.size);
+      String etag = orig.etag();
+
+      // The opened version remains readable after it has been replaced.
+      try (OriginalStore.WriteOp replace = store.replace("opened", "version two")) {
+        replace.commit();
+      }
+      ByteBuffer buf = ByteBuffer.allocate(100);
+      orig.channel.read(buf, 0);
+      assertEquals("version 1", new String(buf.array(), 0, buf.position(), UTF_8));
+
+      try (OriginalStore.Original replaced = store.open("opened")) {
+        assertNotEquals(etag, replaced.etag());
+      }
+    }
+  }
+
+  @Test
+  public void compression() throws Exception {
+    Path dir = tmpdir.resolve("compressed");
+    OriginalStore.Config config = new OriginalStore.Config();
+    config.compression = OriginalStore.Compression.GZIP;
+    config.compressionLevel = 9;
+    OriginalStore gzip = new OriginalStore(dir, config);
+    // A plain store reads the same directory, as after changing the configuration.
+    OriginalStore plain = new OriginalStore(dir, 100);
+
+    StringBuilder sb = new StringBuilder("<doc>");
+    for (int i = 0; i < 1000; i++) {
+      sb.append("<p>repetitive</p>");
+    }
+    String xml = sb.append("</doc>").toString();
+
+    try (OriginalStore.WriteOp put = gzip.put("gz", xml)) {
+      put.commit();
+    }
+    try (OriginalStore.WriteOp put = plain.put("raw", xml)) {
+      put.commit();
+    }
+    Path stored = gzip.getPath("gz", OriginalStore.hash("gz"));
+    assertTrue(Files.size(stored) < xml.length() / 10);
+    assertEquals(xml, new String(gzip.get("gz"), UTF_8));
+    assertEquals(xml, new String(plain.get("gz"), UTF_8));
+    assertEquals(xml, new String(gzip.get("raw"), UTF_8));
+
+    try (OriginalStore.Original orig = plain.open("gz")) {
+      assertTrue(orig.gzipped);
+      assertEquals(Files.size(stored), orig.size);
+      assertEquals(xml, new String(ByteStreams.toByteArray(orig.content()), UTF_8));
+      // Closing the content leaves the original open.
+      orig.content().close();
+      assertEquals(xml, new String(ByteStreams.toByteArray(orig.content()), UTF_8));
+    }
+
+    // Unchanged content is recognized across storage formats.
+    try (OriginalStore.WriteOp replace = plain.replace("gz", xml)) {
+      assertTrue(replace.noop());
+    }
+    try (OriginalStore.Upload replace = gzip.replace("raw", new ByteArrayInputStream(xml.getBytes(UTF_8)))) {
+      assertTrue(replace.noop());
+    }
+    try (OriginalStore.Upload replace = gzip.replace("gz", new ByteArrayInputStream("<doc/>".getBytes(UTF_8)))) {
+      assertFalse(replace.noop());
+      replace.commit();
+    }
+    assertEquals("<doc/>", new String(plain.get("gz"), UTF_8));
+  }
+
+  @Test
+  public void blobs() throws Exception {
+    OriginalStore dedup = new OriginalStore(tmpdir.resolve("blobs"), 100);
+    for (String id : asList("first", "second")) {
+      try (OriginalStore.WriteOp put = dedup.put(id, "same content")) {
+        put.commit();
+      }
+    }
+    Path first = dedup.getPath("first", OriginalStore.hash("first"));
+    Path second = dedup.getPath("second", OriginalStore.hash("second"));
+    assumeTrue("hard links", Files.getFileStore(first).supportsFileAttributeView("unix"));
+    assertTrue(Files.isSameFile(first, second));
+    String etag;
+    try (OriginalStore.Original orig = dedup.open("first")) {
+      // The modification time is that of the blob, not of this write.
+      assertNull(orig.lastModified);
+      etag = orig.etag();
+    }
+
+    try (OriginalStore.Upload replace =
+           dedup.replace("first", new ByteArrayInputStream("same content".getBytes(UTF_8)))) {
+      assertTrue(replace.noop());
+    }
+    try (OriginalStore.WriteOp replace = dedup.replace("first", "other content")) {
+      assertFalse(replace.noop());
+      replace.commit();
+    }
+    assertFalse(Files.isSameFile(first, second));
+    assertEquals("same content", new String(dedup.get("second"), UTF_8));
+    try (OriginalStore.Original orig = dedup.open("first")) {
+      assertNotEquals(etag, orig.etag());
+    }
+    try (OriginalStore.Original orig = dedup.open("second")) {
+      assertEquals(etag, orig.etag());
+    }
+
+    // Both blobs are in use.
+    assertEquals(0, dedup.collectGarbage(0));
+    try (OriginalStore.WriteOp delete = dedup.delete("second")) {
+      delete.commit();
+    }
+    assertEquals(0, dedup.collectGarbage(3_600_000));
+    assertEquals(1, dedup.collectGarbage(0));
+    assertEquals("other content", new String(dedup.get("first"), UTF_8));
+  }
+
+  @Test
+  public void locks() throws Exception {
+    OriginalStore.Config config = new OriginalStore.Config();
+    config.lockTimeout = Duration.milliseconds(50);
+    config.lockStripes = 1 << 16;
+    OriginalStore locking = new OriginalStore(tmpdir.resolve("locks"), config);
+    MetricRegistry metrics = new MetricRegistry();
+    locking.registerMetrics(metrics);
+
+    // Both in directory 14/49.
+    String unlocked = "unlocked86210";
+    assertEquals(OriginalStore.hash("locked"), OriginalStore.hash(unlocked));
+
+    ExecutorService other = Executors.newSingleThreadExecutor();
+    try (OriginalStore.WriteOp put = locking.put("locked", "content")) {
+      // Other ids, even those in the same directory, don't have to wait.
+      other.submit(() -> {
+        try (OriginalStore.WriteOp op = locking.put(unlocked, "content")) {
+          op.commit();
+        }
+        return null;
+      }).get();
+
+      try {
+        other.submit(() -> locking.get("locked")).get();
+        fail("expected a timeout");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof TimeoutException);
+      }
+      put.commit();
+    } finally {
+      other.shutdown();
+    }
+
+    assertEquals("content", new String(locking.get("locked"), UTF_8));
+    assertEquals(4, metrics.timer(MetricRegistry.name(OriginalStore.class, "lockWait")).getCount());
+    assertEquals(1, metrics.meter(MetricRegistry.name(OriginalStore.class, "lockTimeouts")).getCount());
+  }
+
+  @Test
+  public void durability() throws Exception {
+    for (OriginalStore.Durability durability : OriginalStore.Durability.values()) {
+      OriginalStore.Config config = new OriginalStore.Config();
+      config.durability = durability;
+      OriginalStore durable = new OriginalStore(tmpdir.resolve("durable-" + durability), config);
+
+      List<Callable<Void>> writers = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        String id = "doc" + i;
+        writers.add(() -> {
+          try (OriginalStore.WriteOp put = durable.put(id, "content of " + id)) {
+            put.commit();
+          }
+          try (OriginalStore.WriteOp replace = durable.replace(id, "new content of " + id)) {
+            replace.commit();
+          }
+          return null;
+        });
+      }
+      ExecutorService pool = Executors.newFixedThreadPool(4);
+      try {
+        for (Future<Void> f : pool.invokeAll(writers)) {
+          f.get();
+        }
+      } finally {
+        pool.shutdown();
+      }
+      for (int i = 0; i < 8; i++) {
+        assertEquals("new content of doc" + i, new String(durable.get("doc" + i), UTF_8));
+      }
+
+      OriginalStore.WriteBatch batch = durable.batch();
+      try (OriginalStore.WriteOp put = durable.put("batched", "content".getBytes(UTF_8), batch)) {
+        put.commit();
+      }
+      // Visible before the batch is synced.
+      assertEquals("content", new String(durable.get("batched"), UTF_8));
+      batch.sync();
+      batch.sync();
+
+      try (OriginalStore.WriteOp delete = durable.delete("batched")) {
+        delete.commit();
+      }
+      try (OriginalStore.WriteOp delete = durable.delete("batched")) {
+        assertTrue(delete.noop());
+      }
+    }
+  }
 }
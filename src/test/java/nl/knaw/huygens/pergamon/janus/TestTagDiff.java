@@ -0,0 +1,52 @@
+package nl.knaw.huygens.pergamon.janus;
+
+import nl.knaw.huygens.pergamon.janus.xml.TaggedCodepoints;
+import nl.knaw.huygens.pergamon.janus.xml.XmlParser;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class TestTagDiff {
+  private static TaggedCodepoints convert(String xml) throws Exception {
+    return new TaggedCodepoints(XmlParser.fromString(xml).getRootElement(), "doc");
+  }
+
+  private static int[] match(String before, String after) throws Exception {
+    List<Annotation> old = convert(before).tags();
+    return TagDiff.match(old, convert(after));
+  }
+
+  @Test
+  public void textEdit() throws Exception {
+    // Offsets shift, but all tags remain.
+    assertArrayEquals(new int[]{0, 1, 2},
+      match("<a><b>foo</b><c>bar</c></a>", "<a><b>fooo</b><c>bar</c></a>"));
+  }
+
+  @Test
+  public void insert() throws Exception {
+    assertArrayEquals(new int[]{0, 1, -1, 2},
+      match("<a><b/><c/></a>", "<a><b/><x/><c/></a>"));
+  }
+
+  @Test
+  public void remove() throws Exception {
+    assertArrayEquals(new int[]{0, 1, 3, 4},
+      match("<a><b/><x/><c/><d/></a>", "<a><b/><c/><d/></a>"));
+  }
+
+  @Test
+  public void attributes() throws Exception {
+    assertArrayEquals(new int[]{0, 1, -1, 3},
+      match("<a><b n='1'/><b n='2'/><b n='3'/></a>", "<a><b n='1'/><b n='4'/><b n='3'/></a>"));
+  }
+
+  @Test
+  public void middle() throws Exception {
+    // Prefix and suffix differ, so the alignment is up to the longest common subsequence.
+    assertArrayEquals(new int[]{-1, -1, 1, -1, 2, 3},
+      match("<a><b/><c/><d/></a>", "<r><x/><b/><y/><c/><d/></r>"));
+  }
+}
@@ -0,0 +1,55 @@
+package nl.knaw.huygens.pergamon.janus.graphql;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestBatchLoader {
+  private final List<List<String>> batches = new ArrayList<>();
+
+  // Knows every key except "missing".
+  private Map<String, String> fetch(Collection<String> keys) {
+    batches.add(new ArrayList<>(keys));
+    Map<String, String> result = new HashMap<>();
+    keys.stream().filter(key -> !key.equals("missing")).forEach(key -> result.put(key, key.toUpperCase()));
+    return result;
+  }
+
+  @Test
+  public void batches() {
+    BatchLoader<String> loader = new BatchLoader<>(this::fetch);
+    loader.prime("a");
+    loader.prime("b");
+    loader.prime("missing");
+    loader.prime(null);
+
+    assertEquals("B", loader.load("b"));
+    assertEquals(singletonList(asList("a", "b", "missing")), batches);
+
+    assertEquals("A", loader.load("a"));
+    assertNull(loader.load("missing"));
+    assertEquals(1, batches.size());
+  }
+
+  @Test
+  public void memoizes() {
+    BatchLoader<String> loader = new BatchLoader<>(this::fetch);
+    assertEquals("A", loader.load("a"));
+    loader.prime("a");
+    loader.prime("c");
+    assertEquals("A", loader.load("a"));
+    assertEquals(1, batches.size());
+
+    assertEquals("D", loader.load("d"));
+    assertEquals(asList(singletonList("a"), asList("c", "d")), batches);
+  }
+}
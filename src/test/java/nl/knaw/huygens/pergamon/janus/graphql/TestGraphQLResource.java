@@ -0,0 +1,140 @@
+package nl.knaw.huygens.pergamon.janus.graphql;
+
+import com.codahale.metrics.MetricRegistry;
+import graphql.ErrorType;
+import graphql.ExecutionResult;
+import graphql.GraphQLException;
+import graphql.parser.Parser;
+import graphql.schema.GraphQLSchema;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Optional;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static graphql.Scalars.GraphQLString;
+import static graphql.schema.GraphQLArgument.newArgument;
+import static graphql.schema.GraphQLFieldDefinition.newFieldDefinition;
+import static graphql.schema.GraphQLObjectType.newObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestGraphQLResource {
+  private static final GraphQLSchema SCHEMA = GraphQLSchema.newSchema().query(newObject()
+    .name("Query")
+    .field(newFieldDefinition()
+      .name("hello")
+      .type(GraphQLString)
+      .argument(newArgument().name("name").type(GraphQLString))
+      .dataFetcher(env -> "hello " + env.getArgument("name")))
+    .build()).build();
+
+  private static final String QUERY = "{ hello }";
+  private static final String QUERY_WITH_VARIABLE = "query Q($name: String) { hello(name: $name) }";
+
+  private final GraphQLResource resource = new GraphQLResource(null, SCHEMA, null, new GraphQLResource.Config());
+
+  @Test
+  public void execute() {
+    ExecutionResult result = resource.execute(QUERY, null, null, null);
+    assertTrue(result.getErrors().isEmpty());
+    assertEquals(Collections.singletonMap("hello", "hello null"), result.getData());
+
+    result = resource.execute(QUERY_WITH_VARIABLE, null, "Q", Collections.singletonMap("name", "world"));
+    assertEquals(Collections.singletonMap("hello", "hello world"), result.getData());
+  }
+
+  @Test
+  public void persisted() {
+    String id = QueryCache.id(QUERY);
+    ExecutionResult result = resource.execute(null, id, null, null);
+    assertEquals("PersistedQueryNotFound", result.getErrors().get(0).getMessage());
+
+    resource.execute(QUERY, id, null, null);
+    result = resource.execute(null, id, null, null);
+    assertTrue(result.getErrors().isEmpty());
+    assertEquals(Collections.singletonMap("hello", "hello null"), result.getData());
+
+    result = resource.execute(QUERY, QueryCache.id("{ other }"), null, null);
+    assertEquals(1, result.getErrors().size());
+    assertNull(result.getData());
+  }
+
+  @Test
+  public void errors() {
+    ExecutionResult result = resource.execute("{ hello", null, null, null);
+    assertEquals(ErrorType.InvalidSyntax, result.getErrors().get(0).getErrorType());
+
+    result = resource.execute("{ noSuchField }", null, null, null);
+    assertEquals(ErrorType.ValidationError, result.getErrors().get(0).getErrorType());
+    assertNull(result.getData());
+  }
+
+  @Test
+  public void limits() {
+    QueryLimits limits = new QueryLimits(2, 3);
+    assertEquals(Optional.empty(), limits.check(new Parser().parseDocument("{ a { b } c }")));
+    assertEquals(Optional.of("query depth 3 exceeds maximum of 2"),
+      limits.check(new Parser().parseDocument("{ a { ...F } } fragment F on A { b { c } }")));
+    assertEquals(Optional.of("query complexity 4 exceeds maximum of 3"),
+      limits.check(new Parser().parseDocument("{ a { b } c d }")));
+    // Introspection doesn't count.
+    assertEquals(Optional.empty(),
+      limits.check(new Parser().parseDocument("{ __schema { types { fields { type { name } } } } }")));
+
+    GraphQLResource.Config config = new GraphQLResource.Config();
+    config.maxComplexity = 2;
+    ExecutionResult result = new GraphQLResource(null, SCHEMA, null, config)
+      .execute("{ a: hello b: hello c: hello }", null, null, null);
+    assertEquals("query complexity 3 exceeds maximum of 2", result.getErrors().get(0).getMessage());
+    assertNull(result.getData());
+  }
+
+  @Test
+  public void metrics() {
+    MetricRegistry registry = new MetricRegistry();
+    GraphQLResource resource = new GraphQLResource(null, SCHEMA, null, new GraphQLResource.Config());
+    resource.registerMetrics(registry);
+    resource.execute("{ a: hello b: hello }", null, null, null);
+
+    assertEquals(1, registry.timer(name(GraphQLResource.class, "queries")).getCount());
+    assertEquals(2, registry.timer(name(GraphQLResource.class, "fields", "Query.hello")).getCount());
+    assertEquals(0, registry.histogram(name(GraphQLResource.class, "backendCalls")).getSnapshot().getMax());
+    assertEquals(0, registry.histogram(name(GraphQLResource.class, "cost")).getSnapshot().getMax());
+  }
+
+  @Test
+  public void metricsOfFailedQuery() {
+    MetricRegistry registry = new MetricRegistry();
+    GraphQLResource resource = new GraphQLResource(null, SCHEMA, null, new GraphQLResource.Config());
+    resource.registerMetrics(registry);
+    try {
+      resource.execute(QUERY_WITH_VARIABLE, null, "NoSuchOperation", null);
+      fail("expected execution to fail");
+    } catch (GraphQLException e) {
+      // Counted all the same.
+    }
+
+    assertEquals(1, registry.timer(name(GraphQLResource.class, "queries")).getCount());
+    assertEquals(1, registry.histogram(name(GraphQLResource.class, "backendCalls")).getCount());
+  }
+
+  @Test
+  public void cache() {
+    QueryCache cache = new QueryCache(SCHEMA, 10, new QueryLimits(10, 100));
+    QueryCache.PreparsedQuery first = cache.get(QUERY);
+    assertNotNull(first.document);
+    assertSame(first, cache.get(QUERY));
+    assertSame(first, cache.getById(QueryCache.id(QUERY)));
+    assertEquals(2, cache.hits());
+
+    QueryCache.PreparsedQuery invalid = cache.get("{ noSuchField }");
+    assertNull(invalid.document);
+    assertEquals(1, invalid.errors.size());
+    assertSame(invalid, cache.get("{ noSuchField }"));
+  }
+}
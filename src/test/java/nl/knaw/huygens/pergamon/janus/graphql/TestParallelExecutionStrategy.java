@@ -0,0 +1,87 @@
+package nl.knaw.huygens.pergamon.janus.graphql;
+
+import graphql.ExecutionResult;
+import graphql.schema.GraphQLList;
+import graphql.schema.GraphQLObjectType;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.GraphQLTypeReference;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static graphql.Scalars.GraphQLString;
+import static graphql.schema.GraphQLFieldDefinition.newFieldDefinition;
+import static graphql.schema.GraphQLObjectType.newObject;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestParallelExecutionStrategy {
+  private final ExecutorService executor = Executors.newFixedThreadPool(1);
+
+  // Resolving a "slow" field waits until the other one has started, so they can only
+  // both complete if they're resolved concurrently.
+  private final CountDownLatch started = new CountDownLatch(2);
+
+  private final GraphQLObjectType node = newObject()
+    .name("Node")
+    .field(newFieldDefinition().name("name").type(GraphQLString).dataFetcher(env -> env.getSource()))
+    .field(newFieldDefinition().name("child").type(new GraphQLTypeReference("Node"))
+                               .dataFetcher(env -> env.getSource() + "/child"))
+    .field(newFieldDefinition().name("children").type(new GraphQLList(new GraphQLTypeReference("Node")))
+                               .dataFetcher(env -> Arrays.asList(env.getSource() + "/0", env.getSource() + "/1")))
+    .field(newFieldDefinition().name("slow").type(new GraphQLTypeReference("Node")).dataFetcher(env -> {
+      started.countDown();
+      try {
+        return started.await(5, TimeUnit.SECONDS) ? env.getSource() + "/slow" : null;
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }))
+    .build();
+
+  private final GraphQLSchema schema = GraphQLSchema.newSchema().query(newObject()
+    .name("Query")
+    .field(newFieldDefinition().name("root").type(node).dataFetcher(env -> "root"))
+    .build()).build(Collections.singleton(node));
+
+  private final GraphQLResource resource = new GraphQLResource(null, schema, executor, config());
+
+  private static GraphQLResource.Config config() {
+    GraphQLResource.Config config = new GraphQLResource.Config();
+    config.defaultListSize = 2; // The length of children.
+    return config;
+  }
+
+  @After
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void concurrent() {
+    ExecutionResult result = resource.execute("{ root { a: slow { name } b: slow { name } } }", null, null, null);
+    assertTrue(result.getErrors().isEmpty());
+    Map<String, Map<String, Map<String, Object>>> data = result.getData();
+    assertEquals("root/slow", data.get("root").get("a").get("name"));
+    assertEquals("root/slow", data.get("root").get("b").get("name"));
+  }
+
+  @Test
+  public void nested() {
+    // Many more forked fields than threads.
+    ExecutionResult result = resource.execute("{ root { children { children { child { name } children { name } } } } }",
+      null, null, null);
+    assertTrue(result.getErrors().isEmpty());
+    Map<String, Map<String, List<Map<String, List<Map<String, Map<String, Object>>>>>>> data = result.getData();
+    assertEquals("root/1/0/child", data.get("root").get("children").get(1).get("children").get(0)
+                                       .get("child").get("name"));
+  }
+}
@@ -0,0 +1,63 @@
+package nl.knaw.huygens.pergamon.janus.graphql;
+
+import graphql.parser.Parser;
+import graphql.schema.GraphQLSchema;
+import graphql.schema.idl.RuntimeWiring;
+import graphql.schema.idl.SchemaGenerator;
+import graphql.schema.idl.SchemaParser;
+import org.junit.Test;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+public class TestQueryCost {
+  private final QueryCost cost = new QueryCost(schema(), 10);
+
+  // The actual schema, without resolvers.
+  private static GraphQLSchema schema() {
+    try (Reader reader = new InputStreamReader(TestQueryCost.class.getResourceAsStream("/schema.graphqls"), UTF_8)) {
+      return new SchemaGenerator().makeExecutableSchema(new SchemaParser().parse(reader),
+        RuntimeWiring.newRuntimeWiring().build());
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private long of(String query) {
+    return of(query, Collections.emptyMap());
+  }
+
+  private long of(String query, Map<String, Object> variables) {
+    return cost.of(new Parser().parseDocument(query), null, variables);
+  }
+
+  @Test
+  public void cost() {
+    assertEquals(1, of("{ document(id: \"x\") { id } }"));
+    assertEquals(2, of("{ document(id: \"x\") { id text } }"));
+    // annotations, plus the body of each.
+    assertEquals(1 + 1 + 10, of("{ document(id: \"x\") { annotations { id body { id } attributes { key } } } }"));
+    assertEquals(1 + 1 + 3, of("{ document(id: \"x\") { annotations(limit: 3) { body { id } } } }"));
+    assertEquals(1 + 5 * (1 + 3),
+      of("query Q($n: Int) { fulltext(query: \"q\", count: $n) { annotations(limit: 3) { body { id } } } }",
+        Collections.singletonMap("n", 5)));
+    // Fragments count as if written out; introspection doesn't count.
+    assertEquals(1 + 1 + 10,
+      of("{ __typename document(id: \"x\") { ...F } } fragment F on Document { annotations { body { id } } }"));
+  }
+
+  @Test
+  public void nested() {
+    String query = "{ document(id: \"x\") { annotations { body { annotations { body { annotations { id } } } } } } }";
+    assertEquals(1 + 1 + 10 * (1 + 1 + 10 * (1 + 1)), of(query));
+
+    // Doesn't overflow.
+    assertEquals(Long.MAX_VALUE, of("{ fulltext(query: \"q\", count: 2000000000) { annotations(limit: 2000000000) " +
+      "{ body { annotations(limit: 2000000000) { body { id } } } } } }"));
+  }
+}
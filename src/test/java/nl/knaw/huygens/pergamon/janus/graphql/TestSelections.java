@@ -0,0 +1,63 @@
+package nl.knaw.huygens.pergamon.janus.graphql;
+
+import graphql.language.Definition;
+import graphql.language.Field;
+import graphql.language.FragmentDefinition;
+import graphql.language.OperationDefinition;
+import graphql.parser.Parser;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestSelections {
+  private final Map<String, FragmentDefinition> fragments = new HashMap<>();
+
+  // The top-level fields of query.
+  private List<Field> parse(String query) {
+    List<Field> fields = new ArrayList<>();
+    for (Definition def : new Parser().parseDocument(query).getDefinitions()) {
+      if (def instanceof FragmentDefinition) {
+        fragments.put(((FragmentDefinition) def).getName(), (FragmentDefinition) def);
+      } else {
+        ((OperationDefinition) def).getSelectionSet().getSelections().forEach(sel -> fields.add((Field) sel));
+      }
+    }
+    return fields;
+  }
+
+  @Test
+  public void children() {
+    List<Field> fields = parse("{ document(id: \"x\") { id ...F ... on Document { text } } }" +
+      "fragment F on Document { annotations { id } }");
+    assertEquals(asList("id", "annotations", "text"), Selections.children(fields, fragments)
+                                                                .stream()
+                                                                .map(Field::getName)
+                                                                .collect(Collectors.toList()));
+    assertEquals(1, Selections.children(fields, "annotations", fragments).size());
+    assertEquals(0, Selections.children(fields, "body", fragments).size());
+  }
+
+  @Test
+  public void sourceFields() {
+    assertEquals(Collections.emptySet(), Document.sourceFields(parse("{ document { id } }"), fragments));
+    assertEquals(Collections.emptySet(),
+      Document.sourceFields(parse("{ document { id annotations { id } } }"), fragments));
+    assertEquals(Collections.singleton("body"),
+      Document.sourceFields(parse("{ document { id ...T } } fragment T on Document { text }"), fragments));
+    assertNull(Document.sourceFields(parse("{ document { id somethingElse } }"), fragments));
+
+    List<Field> annotations = Selections.children(parse("{ document { annotations { body { text } } } }"),
+      "annotations", fragments);
+    assertEquals(Collections.singleton("body"),
+      Document.sourceFields(Selections.children(annotations, "body", fragments), fragments));
+  }
+}
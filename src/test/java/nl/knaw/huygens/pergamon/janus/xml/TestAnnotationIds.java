@@ -0,0 +1,38 @@
+package nl.knaw.huygens.pergamon.janus.xml;
+
+import nl.knaw.huygens.pergamon.janus.Annotation;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestAnnotationIds {
+  @Test
+  public void fast() {
+    String id = AnnotationIds.FAST.id("doc", 0);
+    UUID uuid = UUID.fromString(id);
+    assertEquals(4, uuid.version());
+    assertEquals(2, uuid.variant());
+    assertNotEquals(id, AnnotationIds.FAST.id("doc", 0));
+    assertFalse(AnnotationIds.FAST.deterministic());
+  }
+
+  @Test
+  public void sequential() throws Exception {
+    assertTrue(AnnotationIds.SEQUENTIAL.deterministic());
+
+    String xml = "<a><b/><c><d/></c></a>";
+    List<Annotation> tags = new TaggedCodepoints(XmlParser.fromString(xml).getRootElement(), "doc",
+      AnnotationIds.SEQUENTIAL).tags();
+    for (int i = 0; i < tags.size(); i++) {
+      assertEquals("doc:" + i, tags.get(i).id);
+    }
+    assertEquals("doc:3", tags.get(3).id);
+    assertEquals("d", tags.get(3).type);
+  }
+}
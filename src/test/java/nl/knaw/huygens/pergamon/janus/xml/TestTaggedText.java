@@ -4,14 +4,22 @@ import nl.knaw.huygens.pergamon.janus.Annotation;
 import nu.xom.Element;
 import org.junit.Test;
 
+import javax.xml.stream.XMLStreamReader;
+
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
 import java.util.List;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
 
 public abstract class TestTaggedText {
   private void test(String xml, String text, Annotation... reference) {
-    TaggedText result = parse(xml);
+    test(parse(xml), text, reference);
+    test(stream(xml), text, reference);
+  }
 
+  private void test(TaggedText result, String text, Annotation... reference) {
     assertEquals(text, result.text());
 
     List<Annotation> tags = result.tags();
@@ -26,7 +34,16 @@ public abstract class TestTaggedText {
       assertEquals(x.end, y.end);
 
       assertEquals(x.attributes, y.attributes);
+
+      // Compact accessors should agree with the Annotations.
+      assertEquals(y.start, result.start(i));
+      assertEquals(y.end, result.end(i));
+      assertEquals(y.type, result.type(i));
+      assertEquals(y.id, result.id(i));
+      assertEquals(y.attributes, result.attributes(i));
     }
+    assertEquals(reference.length, result.size());
+    assertEquals(text, result.text());
   }
 
   TaggedText parse(String xml) {
@@ -37,8 +54,18 @@ public abstract class TestTaggedText {
     }
   }
 
+  TaggedText stream(String xml) {
+    try {
+      return construct(XmlParser.streamFrom(new ByteArrayInputStream(xml.getBytes(UTF_8))));
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   protected abstract TaggedText construct(Element doc);
 
+  protected abstract TaggedText construct(XMLStreamReader in) throws Exception;
+
   // Constructs a Tag annotation. Implementations choose whether to use 8-bit, 16-bit, or codepoint end and start.
   // Tags may be reused as identifiers.
   protected abstract Annotation tag(String tag, int start8, int end8, int start16, int end16, int startCP, int endCP);
@@ -121,4 +148,16 @@ public abstract class TestTaggedText {
       tag("f", 10, 10, 10, 10, 10, 10)
     );
   }
+
+  @Test
+  public void deeplyNested() {
+    int depth = 100000;
+    String xml = String.join("", Collections.nCopies(depth, "<x>")) + "text" +
+      String.join("", Collections.nCopies(depth, "</x>"));
+    for (TaggedText result : new TaggedText[]{parse(xml), stream(xml)}) {
+      assertEquals("text", result.text());
+      assertEquals(depth, result.tags().size());
+      assertEquals(0, result.tags().get(depth - 1).start);
+    }
+  }
 }